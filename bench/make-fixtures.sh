@@ -0,0 +1,15 @@
+#! /bin/bash
+
+# makes the binary .doc fixtures (small.doc, small-revisions.doc, large.doc,
+# large-revisions.doc, list.doc) out of the checked-in .docx and list.html,
+# with LibreOffice (soffice has to be on the path); the tracked changes are
+# kept in the .doc ones
+
+where=$(dirname $0 | xargs readlink -f)
+
+fixtures="$where/fixtures"
+format='doc:MS Word 97'
+
+soffice --headless --convert-to "$format" --outdir "$fixtures" "$fixtures"/*.docx || exit 1
+# opened as a Writer document, not as a web page, so it's saved with tables like the real list
+soffice --headless --infilter='HTML (StarWriter)' --convert-to "$format" --outdir "$fixtures" "$fixtures/list.html" || exit 1
@@ -0,0 +1,13 @@
+#! /bin/bash
+
+# compiles the benchmarks against the main classes (run ../make.sh first);
+# jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3 go into bench/lib
+
+where=$(dirname $0 | xargs readlink -f)
+
+srcdir="$where/src"
+bindir="$where/bin"
+
+mkdir -p "$srcdir" "$bindir"
+
+javac -cp $(ls -1 "$where"/lib/*.jar "$where"/../lib/*.jar | tr '\n' ';')"$where/../bin;." -d "$bindir" $(find "$srcdir" -name "*.java") $@
@@ -0,0 +1,12 @@
+#! /bin/bash
+
+# runs all the benchmarks, or the ones matching the given regexp, with the gc profiler:
+#   ./run.sh
+#   ./run.sh CaseList -p years=3
+#   ./run.sh -rf json -rff result.json
+
+where=$(dirname $0) # | xargs readlink -f)
+
+bindir="$where/bin"
+
+cd "$where" && java -cp $(ls -1 lib/*.jar ../lib/*.jar | tr '\n' ';')"bin;../bin;..;." org.openjdk.jmh.Main -prof gc $@
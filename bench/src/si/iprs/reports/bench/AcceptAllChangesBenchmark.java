@@ -0,0 +1,58 @@
+package si.iprs.reports.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import si.iprs.reports.*;
+
+/**
+ * Aspose merge (accept all changes) of a single document, into memory and
+ * into a file, and the cheap revision check that lets documents skip it.
+ *
+ * @author ikolar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AcceptAllChangesBenchmark {
+    @Param({ "small.docx", "small-revisions.docx", "large.docx", "large-revisions.docx",
+        "small.doc", "small-revisions.doc", "large.doc", "large-revisions.doc" })
+    public String fixture;
+
+    private AcceptAllChanges acceptor;
+    private RevisionDetector detector;
+    private File doc, merged;
+
+    @Setup
+    public void setUp() throws IOException {
+        acceptor = new AcceptAllChanges();
+        detector = new RevisionDetector();
+        doc = Fixtures.get(fixture);
+        merged = File.createTempFile("bench-", ".merged.docx");
+    }
+
+    @TearDown
+    public void tearDown() {
+        merged.delete();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream acceptAllChangesInMemory() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        acceptor.acceptAllChanges(doc, out);
+        return out;
+    }
+
+    @Benchmark
+    public File acceptAllChangesToFile() throws IOException {
+        return acceptor.acceptAllChanges(doc, merged, true);
+    }
+
+    @Benchmark
+    public Boolean hasRevisions() {
+        return detector.hasRevisions(doc);
+    }
+}
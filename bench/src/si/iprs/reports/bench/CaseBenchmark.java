@@ -0,0 +1,38 @@
+package si.iprs.reports.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import si.iprs.reports.*;
+
+/**
+ * The Case constructor, which fixes up the nadzornik's name (fixNadzornik,
+ * with the resolver loaded from the nadzorniki file).
+ *
+ * @author ikolar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CaseBenchmark {
+    // a correct name, a known typo, a name with a note, an unknown name
+    @Param({ "Eva Kalan", "Blaš Pavšič", "Marijan Čonč rešuje Jelena", "Janez Novak" })
+    public String nadzornik;
+
+    private Date date;
+
+    @Setup
+    public void setUp() throws IOException {
+        date = new Date();
+        Case.setNadzornikResolver(NadzornikResolver.load(new File(System.getProperty("nadzorniki", "../nadzorniki"))));
+    }
+
+    @Benchmark
+    public Case newCase() {
+        return new Case("Prijavitelj", "Podjetje d.o.o.", "videonadzor", nadzornik, date);
+    }
+}
@@ -0,0 +1,70 @@
+package si.iprs.reports.bench;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import si.iprs.reports.*;
+
+/**
+ * The two halves of ParseInspectionsList.parse() on a synthetic ten year
+ * case list (300 cases a year): streaming the tables out of the document,
+ * and parsing their rows into cases. list.doc is what the real list is,
+ * list.html is the same list without Tika's OfficeParser in the way.
+ *
+ * @author ikolar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class CaseListBenchmark {
+    // include_last_n_years
+    @Param({ "1", "3", "10" })
+    public int years;
+
+    @Param({ "list.doc", "list.html" })
+    public String fixture;
+
+    private DocToHtml engine;
+    private CaseRowParser rowParser;
+    private File list;
+    private List<String[]> rows;
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new DocToHtml();
+        rowParser = new CaseRowParser();
+        list = Fixtures.get(fixture);
+
+        rows = new ArrayList<String[]>();
+        for (CaseListHandler.Table table : loadTables().getTables())
+            rows.addAll(table.getRows());
+    }
+
+    private CaseListHandler loadTables() throws IOException {
+        CaseListHandler handler = new CaseListHandler(years + 2);
+        engine.parse(list, handler);
+        return handler;
+    }
+
+    @Benchmark
+    public CaseListHandler streamTables() throws IOException {
+        return loadTables();
+    }
+
+    @Benchmark
+    public void parseRows(Blackhole bh) {
+        for (String[] row : rows) {
+            try {
+                bh.consume(rowParser.parse(row).toCase());
+            } catch (ParseException pe) {
+                bh.consume(pe); // headings, the template
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package si.iprs.reports.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import si.iprs.reports.*;
+
+/**
+ * Tika conversion of a single document to html: into a String, streamed
+ * into a file, and through the static callTika() wrapper.
+ *
+ * @author ikolar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DocToHtmlBenchmark {
+    @Param({ "small.docx", "small-revisions.docx", "large.docx", "large-revisions.docx",
+        "small.doc", "small-revisions.doc", "large.doc", "large-revisions.doc" })
+    public String fixture;
+
+    private DocToHtml engine;
+    private File doc, html;
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new DocToHtml();
+        doc = Fixtures.get(fixture);
+        html = File.createTempFile("bench-", ".html");
+    }
+
+    @TearDown
+    public void tearDown() {
+        html.delete();
+    }
+
+    @Benchmark
+    public String toHtmlString() throws IOException {
+        return engine.toHtml(doc);
+    }
+
+    @Benchmark
+    public File toHtmlFile() throws IOException {
+        engine.toHtml(doc, html);
+        return html;
+    }
+
+    @Benchmark
+    public String callTika() throws IOException {
+        return DocToHtml.callTika(doc);
+    }
+}
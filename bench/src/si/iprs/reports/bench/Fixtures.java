@@ -0,0 +1,24 @@
+package si.iprs.reports.bench;
+
+import java.io.*;
+
+/**
+ * Finds the fixture files. They live in bench/fixtures (the .doc ones are
+ * made by make-fixtures.sh), or in the directory given by the "fixtures"
+ * system property.
+ *
+ * @author ikolar
+ */
+public final class Fixtures {
+    private Fixtures() {
+    }
+
+    public static File get(String name) throws FileNotFoundException {
+        File dir = new File(System.getProperty("fixtures", "fixtures"));
+        File f = new File(dir, name);
+        if (! f.isFile())
+            throw new FileNotFoundException("o_O fixture '" + f.getAbsolutePath() + "' could not be found." +
+                " Run from the bench directory (after make-fixtures.sh, for the .doc ones) or set -Dfixtures=<dir>");
+        return f;
+    }
+}
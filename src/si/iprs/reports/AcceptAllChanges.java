@@ -40,11 +40,7 @@ public class AcceptAllChanges {
     }
 
 	public File acceptAllChanges(File original, File merged, boolean overwrite) throws IOException {
-		original = original.getCanonicalFile();
-	
-		String ext = FilenameUtils.getExtension(original.getName());
-		if (! ("doc".equalsIgnoreCase(ext) || "docx".equalsIgnoreCase(ext)) )
-			throw new IOException("Not a .doc/.docx file (ext = " + ext + "): " + original);
+		original = checkOriginal(original);
 		
 		if (merged.exists() && merged.length() > 0 && !overwrite)
 			return merged;
@@ -60,6 +56,40 @@ public class AcceptAllChanges {
 		}
 	}
 
+	/**
+	 * Accept all changes and write the merged .docx into a stream instead of
+	 * a file, so it can be fed straight into Tika.
+	 *
+	 * @return false if the document has no changes to accept (and nothing
+	 *         was written, the original is as good as merged)
+	 */
+	public boolean acceptAllChanges(File original, OutputStream merged) throws IOException {
+		original = checkOriginal(original);
+
+		try {	
+            Document doc = new Document(original.getCanonicalPath());
+			if (! doc.hasRevisions()) {
+				logger.info(String.format("No changes to accept in %s", original));
+				return false;
+			}
+			logger.info(String.format("Accepting all changes in %s, output will be kept in memory ..", original));
+			doc.acceptAllRevisions();
+			doc.save(merged, SaveFormat.DOCX);
+			return true;
+		} catch (Exception e) {
+			throw new IOException("Aspose lib reported an error while accepting all the changes: " + e.getMessage(), e);
+		}
+	}
+
+	private File checkOriginal(File original) throws IOException {
+		original = original.getCanonicalFile();
+	
+		String ext = FilenameUtils.getExtension(original.getName());
+		if (! ("doc".equalsIgnoreCase(ext) || "docx".equalsIgnoreCase(ext)) )
+			throw new IOException("Not a .doc/.docx file (ext = " + ext + "): " + original);
+		return original;
+	}
+
 
 	public static void main(String[] args) throws IOException {
 		if (args.length < 1) {
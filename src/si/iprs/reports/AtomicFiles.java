@@ -0,0 +1,78 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Helpers for writing output files atomically: write into a temp file
+ * next to the target, then rename it over the target. Readers (and a
+ * later run after a crash) never see a half-written file.
+ *
+ * @author ikolar
+ */
+public final class AtomicFiles {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Create a temp file in the same directory as the target (so the rename
+     * stays on the same file system).
+     */
+    public static File newTempFile(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+    }
+
+    /**
+     * Buffered output stream over a file channel.
+     */
+    public static OutputStream newOutputStream(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+    }
+
+    /**
+     * Move the temp file over the target, atomically if the file system allows it.
+     */
+    public static void commit(File tmp, File target) throws IOException {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Make target a hard link to (or, if the file system can't do links,
+     * a copy of) an existing file.
+     */
+    public static void linkOrCopy(File existing, File target) throws IOException {
+        File tmp = newTempFile(target);
+        try {
+            if (! tmp.delete())
+                throw new IOException("o_O could not make room for link " + tmp);
+            try {
+                Files.createLink(tmp.toPath(), existing.toPath());
+            } catch (UnsupportedOperationException e) {
+                Files.copy(existing.toPath(), tmp.toPath());
+            } catch (FileSystemException e) {
+                Files.copy(existing.toPath(), tmp.toPath());
+            }
+            commit(tmp, target);
+        } finally {
+            discard(tmp);
+        }
+    }
+
+    /**
+     * Get rid of a temp file after a failed write.
+     */
+    public static void discard(File tmp) {
+        if (tmp != null && tmp.exists() && ! tmp.delete())
+            tmp.deleteOnExit();
+    }
+}
@@ -10,7 +10,6 @@ import java.text.*;
 public class Case {
     private static final SimpleDateFormat DF = new SimpleDateFormat("yyyy-MM-dd");
 
-    private String[] orignals;
     private String prijavitelj;
     private String zavezanec, opis;
     private String nadzornik;
@@ -19,19 +18,11 @@ public class Case {
     
     // extras
     private String caseNumber = null;
-    private List documents = new ArrayList();
-
-    // todo make this configurable
-    private static Map<String, String> nadzornikiTypos = new HashMap<String, String>();
-    static {
-        nadzornikiTypos.put("Monika Benkovč", "Monika Benkovič");
-        nadzornikiTypos.put("Monika Benkovč", "Monika Benkovič");
-        nadzornikiTypos.put("Klenem Mišič", "Klemen Mišič");
-        nadzornikiTypos.put("Marko Logar", "Jure Logar");
-        nadzornikiTypos.put("Marijan Činč", "Marijan Čonč");
-        nadzornikiTypos.put("Tana Slak", "Tanja Slak");
-        nadzornikiTypos.put("Blaš Pavšič", "Blaž Pavšič");
-    }
+    private Date closed = null; // still open
+    private List<Document> documents = new ArrayList<Document>();
+
+    // fixes typos in nadzorniki's names (see the nadzorniki and nadzorniki.aliases files)
+    private static volatile NadzornikResolver nadzornikResolver = NadzornikResolver.builtIn();
 
     
     /**
@@ -51,8 +42,15 @@ public class Case {
         if (nadzornik.contains("rešuje"))
             nadzornik = nadzornik.substring(0, nadzornik.indexOf("rešuje")).trim();
     
-        if (nadzornikiTypos.containsKey(nadzornik))
-            nadzornik = nadzornikiTypos.get(nadzornik);
+        nadzornik = nadzornikResolver.resolve(nadzornik);
+    }
+
+    public static NadzornikResolver getNadzornikResolver() {
+        return nadzornikResolver;
+    }
+
+    public static void setNadzornikResolver(NadzornikResolver resolver) {
+        nadzornikResolver = resolver;
     }
 
     public String getZavezanec() {
@@ -75,6 +73,35 @@ public class Case {
         return this.datumDodelitve;
     }
 
+    /**
+     * The case number (06..-../yyyy), or null if we don't know it.
+     */
+    public String getCaseNumber() {
+        return this.caseNumber;
+    }
+
+    public void setCaseNumber(String caseNumber) {
+        this.caseNumber = caseNumber;
+    }
+
+    /**
+     * When the case was closed, or null if it's still open.
+     */
+    public Date getClosed() {
+        return this.closed;
+    }
+
+    public void setClosed(Date closed) {
+        this.closed = closed;
+    }
+
+    /**
+     * The documents filed in this case.
+     */
+    public List<Document> getDocuments() {
+        return this.documents;
+    }
+
     public String toString() {
         return String.format("[Case #%s] dodeljen=%s zavezanec='%s' nadzornik='%s' opis='%s'", 
             (caseNumber == null ? "?" : caseNumber),
@@ -0,0 +1,402 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Links the converted documents to the cases from the case list, by case
+ * number (the one the pipeline picked out of each document's text).
+ *
+ * The cases are put into a hash index by case number once, and then each
+ * document is looked up in it, so linking is linear in the number of cases
+ * plus documents. A linked document is added to its case's documents, and
+ * gets the case's zavezanec, opis and datum dodelitve.
+ *
+ * Case numbers are compared by their digits only, without leading zeros
+ * (0610-012/2014 is 0610-12/2014), since they're typed in by hand on both
+ * sides.
+ *
+ * The list's # column (the only place a case number could come from on the
+ * list side) is mostly just a row counter, so most cases have no number. A
+ * document that isn't linked by number is matched by its nadzornik, date and
+ * text instead: the candidates are the cases of the same nadzornik assigned
+ * up to {@link #WINDOW_YEARS} years before the document, and the document's
+ * text has to have the case's zavezanec in it (folded, without the legal
+ * form). If more than one candidate fits, the one assigned last before the
+ * document wins.
+ *
+ * @author ikolar
+ */
+public class CaseLinker {
+    public static final Log logger =
+        LogFactory.getLog(CaseLinker.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    public static final int WINDOW_YEARS = 3;
+
+    // d.o.o., s.p., ... are split into single letters by the folding
+    private static final Set<String> LEGAL_FORMS = new HashSet<String>(Arrays.asList("doo", "dd", "sp", "zoo", "ltd", "gmbh"));
+
+    private final Map<String, Case> index = new HashMap<String, Case>();
+    private final List<Case> cases = new ArrayList<Case>();
+    private final Map<String, List<Case>> byNadzornik = new HashMap<String, List<Case>>(); // each word of the folded name -> cases
+    private final Map<Case, String> zavezanci = new IdentityHashMap<Case, String>(); // case -> folded zavezanec
+
+    private final List<Document> linked = new ArrayList<Document>();
+    private final List<Document> linkedByZavezanec = new ArrayList<Document>();
+    private final Map<Document, Case> docCases = new IdentityHashMap<Document, Case>();
+    private final List<Document> unmatched = new ArrayList<Document>();
+    private final List<Document> withoutCaseNumber = new ArrayList<Document>();
+
+    private TextCache textCache;
+
+    /**
+     * Which of its candidates' zavezanci were in the text of each document,
+     * so a document that didn't change doesn't have to be read again the next
+     * time it's linked (as long as it has the same candidates). Only a hash
+     * of the candidates is kept, and the ones that were found (usually none
+     * or one). Whoever keeps it has to forget the documents that change.
+     */
+    public static class TextCache {
+        private static class Entry {
+            final long signature;
+            final Set<String> found;
+
+            Entry(long signature, Set<String> found) {
+                this.signature = signature;
+                this.found = found;
+            }
+        }
+
+        private final Map<File, Entry> entries = new HashMap<File, Entry>();
+
+        /**
+         * @return the zavezanci found in the document, or null if it wasn't
+         *         checked against the same ones
+         */
+        Set<String> get(File src, long signature) {
+            Entry e = entries.get(src.getAbsoluteFile());
+            return e == null || e.signature != signature ? null : e.found;
+        }
+
+        void put(File src, long signature, Set<String> found) {
+            entries.put(src.getAbsoluteFile(), new Entry(signature, found.isEmpty() ? Collections.<String>emptySet() : found));
+        }
+
+        /**
+         * 64 bit FNV-1a of the zavezanci.
+         */
+        static long signature(SortedSet<String> keys) {
+            long hash = 0xcbf29ce484222325L;
+            for (String key : keys) {
+                for (int i = 0; i < key.length(); i++) {
+                    hash ^= key.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+                hash ^= '\n';
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        /**
+         * Forget a document, or all the documents in a directory.
+         */
+        public void forget(File src) {
+            String prefix = src.getAbsolutePath() + File.separator;
+            Iterator<File> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                File f = it.next();
+                if (f.equals(src.getAbsoluteFile()) || f.getPath().startsWith(prefix))
+                    it.remove();
+            }
+        }
+
+        public void clear() {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Where the text of a document comes from, for matching it by zavezanec.
+     */
+    public interface TextSource {
+        /**
+         * @return the document's text, or null if there's none
+         */
+        String getText(Document doc) throws IOException;
+    }
+
+    /**
+     * Index the cases. Cases without a case number can only be matched by
+     * zavezanec.
+     */
+    public CaseLinker(Collection<Case> cases) {
+        for (Case c : cases) {
+            this.cases.add(c);
+            zavezanci.put(c, zavezanecKey(c.getZavezanec()));
+            for (String word : words(c.getNadzornik())) {
+                List<Case> list = byNadzornik.get(word);
+                if (list == null)
+                    byNadzornik.put(word, list = new ArrayList<Case>());
+                list.add(c);
+            }
+
+            if (c.getCaseNumber() == null)
+                continue;
+            String key = key(c.getCaseNumber());
+            Case other = index.get(key);
+            if (other != null) {
+                logger.warn(String.format("o_O case number %s is in the case list twice, linking to the first one: %s, %s", c.getCaseNumber(), other, c));
+                continue;
+            }
+            index.put(key, c);
+        }
+    }
+
+    /**
+     * Remember what was found in the documents' texts in the cache (which
+     * can outlive this linker).
+     */
+    public void setTextCache(TextCache textCache) {
+        this.textCache = textCache;
+    }
+
+    /**
+     * Link the documents to their cases, by case number only.
+     */
+    public void link(Collection<Document> docs) throws IOException {
+        link(docs, null);
+    }
+
+    /**
+     * Link the documents to their cases, by case number, or else by
+     * nadzornik, date and zavezanec (if there's a text source).
+     */
+    public void link(Collection<Document> docs, TextSource texts) throws IOException {
+        for (Document doc : docs) {
+            Case c = doc.getCaseNumber() == null ? null : index.get(key(doc.getCaseNumber()));
+            if (c != null) {
+                link(doc, c);
+                linked.add(doc);
+                continue;
+            }
+
+            c = texts == null ? null : matchByZavezanec(doc, texts);
+            if (c != null) {
+                link(doc, c);
+                linkedByZavezanec.add(doc);
+            } else if (doc.getCaseNumber() == null) {
+                withoutCaseNumber.add(doc);
+            } else {
+                unmatched.add(doc);
+            }
+        }
+        logger.info(String.format("Linked %d documents to cases by case number and %d by zavezanec, %d have a case number that's not on the list, %d have no case number",
+            linked.size(), linkedByZavezanec.size(), unmatched.size(), withoutCaseNumber.size()));
+    }
+
+    private void link(Document doc, Case c) {
+        c.getDocuments().add(doc);
+        doc.setZavezanec(c.getZavezanec());
+        doc.setOpis(c.getOpis());
+        doc.setDatumDodelitve(c.getDatumDodelitve());
+        docCases.put(doc, c);
+    }
+
+    /**
+     * The case of the document's nadzornik, assigned in the window before
+     * the document, whose zavezanec is in the document's text.
+     *
+     * @return the case, or null if none fits
+     */
+    private Case matchByZavezanec(Document doc, TextSource texts) throws IOException {
+        List<String> nadzornik = words(doc.getNadzornik());
+        if (nadzornik.isEmpty() || ! byNadzornik.containsKey(nadzornik.get(0)))
+            return null;
+
+        Date date = doc.getDocumentDate();
+        Date from = null;
+        if (date != null) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(date);
+            cal.add(Calendar.YEAR, -WINDOW_YEARS);
+            from = cal.getTime();
+        }
+        List<Case> candidates = new ArrayList<Case>();
+        for (Case c : byNadzornik.get(nadzornik.get(0))) {
+            if (! words(c.getNadzornik()).containsAll(nadzornik) || zavezanci.get(c).isEmpty())
+                continue;
+            if (date != null && (c.getDatumDodelitve().after(date) || c.getDatumDodelitve().before(from)))
+                continue;
+            candidates.add(c);
+        }
+        if (candidates.isEmpty())
+            return null;
+
+        // the text is only read if the cache doesn't know it for the same candidates
+        SortedSet<String> keys = new TreeSet<String>();
+        for (Case c : candidates)
+            keys.add(zavezanci.get(c));
+        long signature = TextCache.signature(keys);
+        Set<String> in = textCache == null ? null : textCache.get(doc.getSrc(), signature);
+        if (in == null) {
+            String text = texts.getText(doc);
+            if (text == null)
+                return null;
+            text = " " + fold(text) + " ";
+            in = new HashSet<String>();
+            for (String key : keys) {
+                if (text.contains(" " + key + " "))
+                    in.add(key);
+            }
+            if (textCache != null)
+                textCache.put(doc.getSrc(), signature, in);
+        }
+
+        Case found = null;
+        int matches = 0;
+        for (Case c : candidates) {
+            if (! in.contains(zavezanci.get(c)))
+                continue;
+            matches++;
+            if (found == null || found.getDatumDodelitve().before(c.getDatumDodelitve()))
+                found = c;
+        }
+        if (matches > 1 && date == null) {
+            logger.debug(String.format("%s fits %d cases and has no date, not linking it", doc.getSrc(), matches));
+            return null;
+        }
+        return found;
+    }
+
+    /**
+     * The zavezanec folded, without the legal form (d.o.o., s.p. ..) and
+     * anything that's not a word or a number.
+     */
+    protected static String zavezanecKey(String zavezanec) {
+        StringBuilder key = new StringBuilder();
+        for (String word : words(zavezanec)) {
+            if (LEGAL_FORMS.contains(word) || (word.length() == 1 && ! Character.isDigit(word.charAt(0))))
+                continue;
+            if (key.length() > 0)
+                key.append(' ');
+            key.append(word);
+        }
+        return key.length() < 4 ? "" : key.toString();
+    }
+
+    /**
+     * Lower case, no diacritics, just the words and numbers, single spaces.
+     */
+    private static String fold(String s) {
+        return NadzornikResolver.fold(s.replaceAll("[^\\p{L}\\p{Nd}]+", " "));
+    }
+
+    private static List<String> words(String s) {
+        if (s == null || s.trim().isEmpty())
+            return Collections.<String>emptyList();
+        String folded = fold(s);
+        return folded.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(folded.split(" "));
+    }
+
+    /**
+     * Documents linked by case number.
+     */
+    public List<Document> getLinked() {
+        return linked;
+    }
+
+    /**
+     * Documents linked by nadzornik, date and zavezanec.
+     */
+    public List<Document> getLinkedByZavezanec() {
+        return linkedByZavezanec;
+    }
+
+    /**
+     * The case the document was linked to, or null.
+     */
+    public Case getCase(Document doc) {
+        return docCases.get(doc);
+    }
+
+    /**
+     * Documents with a case number that isn't on the case list.
+     */
+    public List<Document> getUnmatched() {
+        return unmatched;
+    }
+
+    public List<Document> getWithoutCaseNumber() {
+        return withoutCaseNumber;
+    }
+
+    /**
+     * Cases that no document was linked to.
+     */
+    public List<Case> getCasesWithoutDocuments() {
+        List<Case> cases = new ArrayList<Case>();
+        for (Case c : this.cases) {
+            if (c.getDocuments().isEmpty())
+                cases.add(c);
+        }
+        Collections.sort(cases, new Comparator<Case>() {
+            public int compare(Case a, Case b) {
+                return a.getDatumDodelitve().compareTo(b.getDatumDodelitve());
+            }
+        });
+        return cases;
+    }
+
+    /**
+     * Write what was linked and what wasn't, tab separated: "linked", case
+     * number, source; "linked-by-zavezanec", datum dodelitve, zavezanec,
+     * source; "unmatched", case number, source; "no-case-number", source;
+     * "no-documents", case number, datum dodelitve, nadzornik, zavezanec.
+     */
+    public void write(File file) throws IOException {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                for (Document doc : linked)
+                    out.write("linked\t" + doc.getCaseNumber() + "\t" + doc.getSrc().getPath() + "\n");
+                for (Document doc : linkedByZavezanec)
+                    out.write("linked-by-zavezanec\t" + df.format(doc.getDatumDodelitve()) + "\t" + doc.getZavezanec() + "\t" + doc.getSrc().getPath() + "\n");
+                for (Document doc : unmatched)
+                    out.write("unmatched\t" + doc.getCaseNumber() + "\t" + doc.getSrc().getPath() + "\n");
+                for (Document doc : withoutCaseNumber)
+                    out.write("no-case-number\t" + doc.getSrc().getPath() + "\n");
+                for (Case c : getCasesWithoutDocuments())
+                    out.write("no-documents\t" + (c.getCaseNumber() == null ? "" : c.getCaseNumber()) + "\t" + df.format(c.getDatumDodelitve()) + "\t" +
+                        c.getNadzornik() + "\t" + c.getZavezanec() + "\n");
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+    }
+
+    /**
+     * The digit groups of the case number, without leading zeros.
+     */
+    protected static String key(String caseNumber) {
+        StringBuilder key = new StringBuilder();
+        for (String group : caseNumber.split("[^0-9]+")) {
+            if (group.isEmpty())
+                continue;
+            String digits = group.replaceFirst("^0+(?=.)", "");
+            if (key.length() > 0)
+                key.append('-');
+            key.append(digits);
+        }
+        return key.toString();
+    }
+}
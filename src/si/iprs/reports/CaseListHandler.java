@@ -0,0 +1,154 @@
+package si.iprs.reports;
+
+import java.util.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streams the tables out of the case list while Tika is parsing it.
+ *
+ * The list has one table per year, and we only ever want the last few
+ * (plus the new case template at the very end). So instead of building a
+ * DOM of the whole multi-year document, we collect the cell texts of each
+ * table as it goes by and keep just a sliding window of the most recent
+ * ones. Older tables are dropped as soon as a newer one is complete.
+ *
+ * Tables nested in a cell are just text of that cell. A cell's text is
+ * capped (no real cell comes close), so a garbled list can't eat the heap.
+ *
+ * @author ikolar
+ */
+public class CaseListHandler extends DefaultHandler {
+    private static final int MAX_CELL = 64 * 1024;
+
+    private final int window;
+    private final LinkedList<Table> tables = new LinkedList<Table>();
+    private int tableCount = 0;
+
+    // where we are
+    private int depth = 0; // of tables
+    private Table table;
+    private List<String> row;
+    private StringBuilder cell;
+
+    /**
+     * A table from the list: the text of each cell, row by row.
+     */
+    public static class Table {
+        private final int index;
+        private final List<String[]> rows = new ArrayList<String[]>();
+
+        Table(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Position of the table in the document, starting at 0.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public List<String[]> getRows() {
+            return rows;
+        }
+
+        /**
+         * Is this the template for opening new cases (the last table in the list)?
+         */
+        public boolean looksLikeTemplate() {
+            boolean vrsta = false, subjekt = false;
+            for (String[] r : rows) {
+                for (String c : r) {
+                    vrsta |= c.contains("Vrsta zadeve");
+                    subjekt |= c.contains("Subjekt zadeve:");
+                }
+            }
+            return vrsta && subjekt;
+        }
+    }
+
+    /**
+     * @param window how many of the most recent tables to keep
+     */
+    public CaseListHandler(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * The most recent tables, oldest first.
+     */
+    public List<Table> getTables() {
+        return tables;
+    }
+
+    /**
+     * Number of tables in the whole document, kept or not.
+     */
+    public int getTableCount() {
+        return tableCount;
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        String name = localName.toLowerCase();
+        if ("table".equals(name)) {
+            if (depth++ == 0)
+                table = new Table(tableCount++);
+            return;
+        }
+
+        if (depth == 1 && "tr".equals(name)) {
+            row = new ArrayList<String>();
+        } else if (depth == 1 && row != null && ("td".equals(name) || "th".equals(name))) {
+            cell = new StringBuilder();
+        } else if (cell != null && ("br".equals(name) || "p".equals(name))) {
+            cell.append(' ');
+        }
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        String name = localName.toLowerCase();
+        if ("table".equals(name)) {
+            if (--depth == 0) {
+                tables.addLast(table);
+                if (tables.size() > window)
+                    tables.removeFirst();
+                table = null;
+            }
+            return;
+        }
+
+        if (depth == 1 && "tr".equals(name) && row != null) {
+            table.rows.add(row.toArray(new String[row.size()]));
+            row = null;
+        } else if (depth == 1 && cell != null && ("td".equals(name) || "th".equals(name))) {
+            row.add(normalize(cell));
+            cell = null;
+        }
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (cell != null)
+            cell.append(ch, start, Math.min(length, Math.max(0, MAX_CELL - cell.length())));
+    }
+
+    /**
+     * Collapse the whitespace, like jsoup's text() does.
+     */
+    private static String normalize(CharSequence s) {
+        StringBuilder out = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = out.length() > 0;
+            } else {
+                if (space)
+                    out.append(' ');
+                out.append(c);
+                space = false;
+            }
+        }
+        return out.toString();
+    }
+}
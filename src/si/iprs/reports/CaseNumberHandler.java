@@ -0,0 +1,95 @@
+package si.iprs.reports;
+
+import java.util.*;
+import java.util.regex.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Picks the case number (06..-xxx/20xx) out of the text of a document while
+ * Tika is parsing it, so we don't have to grep the html afterwards.
+ *
+ * Same rules as report.sh had: the first block of text (paragraph, table
+ * cell, ..) with a case number in it wins, and within that block the last
+ * case number. The head (title, meta) is ignored.
+ *
+ * @author ikolar
+ */
+public class CaseNumberHandler extends DefaultHandler {
+    public static final Pattern CASE_NUMBER =
+        Pattern.compile("(06..[^/]{0,5})/(20\\d\\d)(/[0-9]+)?");
+
+    private static final Set<String> BLOCKS = new HashSet<String>(Arrays.asList(
+        "p", "div", "td", "th", "tr", "li", "table", "body",
+        "h1", "h2", "h3", "h4", "h5", "h6"));
+    private static final int MAX_BLOCK = 64 * 1024;
+
+    private final StringBuilder block = new StringBuilder();
+    private boolean inHead = false;
+    private String caseNumber = null;
+
+    /**
+     * Find the case number in a block of text.
+     *
+     * @return the last case number in the text, or null
+     */
+    public static String findCaseNumber(CharSequence text) {
+        Matcher m = CASE_NUMBER.matcher(text);
+        String found = null;
+        while (m.find())
+            found = m.group(1) + "/" + m.group(2);
+        if (found == null)
+            return null;
+
+        found = found.replaceAll("[^0-9/-]", "").replaceAll("^/+", "");
+        return found.isEmpty() ? null : found;
+    }
+
+    /**
+     * @return the case number, or null if the document doesn't seem to have one
+     */
+    public String getCaseNumber() {
+        return caseNumber;
+    }
+
+    /**
+     * Seen a case number yet?
+     */
+    public boolean isFound() {
+        return caseNumber != null;
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if ("head".equals(localName))
+            inHead = true;
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if ("head".equals(localName))
+            inHead = false;
+        else if (BLOCKS.contains(localName))
+            endBlock();
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (inHead || caseNumber != null)
+            return;
+        block.append(ch, start, length);
+
+        // don't let a huge paragraph pile up, keep just enough for a split case number
+        if (block.length() > MAX_BLOCK) {
+            caseNumber = findCaseNumber(block);
+            block.delete(0, block.length() - 64);
+        }
+    }
+
+    public void endDocument() throws SAXException {
+        endBlock();
+    }
+
+    private void endBlock() {
+        if (caseNumber == null && block.length() > 0)
+            caseNumber = findCaseNumber(block);
+        block.setLength(0);
+    }
+}
@@ -0,0 +1,278 @@
+package si.iprs.reports;
+
+import java.text.ParseException;
+import java.time.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Parses the cells of a case list row (#, prijavitelj, zavezanec - opis,
+ * nadzornik - case load, datum dodelitve) into a {@link Case}. The case
+ * number is picked out of the # cell with the same rules as in documents
+ * ({@link CaseNumberHandler#findCaseNumber}), if it's there.
+ *
+ * The list is typed in by hand, so the "zavezanec - opis" and "nadzornik -
+ * case load" cells aren't always split by a nice " - ". We try the strict
+ * separators first, then looser ones, and finally just split at the last
+ * dash; the row's {@link Confidence} says how far we had to go.
+ *
+ * Dates that don't exist (31.11.14) roll over into the next month, like
+ * they did with the lenient SimpleDateFormat ("dd.MM.yy") the list was
+ * parsed with before, so the row isn't lost; its date confidence is LOW.
+ *
+ * All the separator patterns are compiled once, and the parser has no
+ * mutable state, so one instance can be shared by any number of threads.
+ *
+ * @author ikolar
+ */
+public class CaseRowParser {
+    /**
+     * How sure we are that a cell was split right.
+     */
+    public enum Confidence {
+        /** split by a proper " - " */
+        HIGH,
+        /** split by a sloppier dash, but still into exactly two parts */
+        MEDIUM,
+        /** split at the last dash, or not at all */
+        LOW
+    }
+
+    // zavezanec - opis
+    private static final Pattern[] STRICT_SEPARATORS = new Pattern[] {
+        Pattern.compile(" - ", Pattern.LITERAL),
+        Pattern.compile(" – ", Pattern.LITERAL)
+    };
+    private static final Pattern[] LOOSE_SEPARATORS = new Pattern[] {
+        Pattern.compile("\\s*-\\s*"),
+        Pattern.compile("\\s*–\\s*")
+    };
+
+    // nadzornik - case load
+    private static final Pattern NADZORNIK_SEPARATOR = Pattern.compile("\\s*-\\s*");
+
+    // dd.MM.yy, but hand typed: 1.2.14, 01. 02. 2014 (anything after the date is ignored)
+    private static final Pattern DATE = Pattern.compile("^(\\d{1,2})\\.\\s*(\\d{1,2})\\.\\s*(\\d{4}|\\d{2})");
+
+    /**
+     * A parsed row.
+     */
+    public static class Row {
+        private final String caseNumber, prijavitelj, zavezanec, opis, nadzornik;
+        private final Date datumDodelitve;
+        private final Confidence zavezanecOpisConfidence, nadzornikConfidence, dateConfidence;
+
+        Row(String caseNumber, String prijavitelj, String zavezanec, String opis, String nadzornik, Date datumDodelitve,
+                Confidence zavezanecOpisConfidence, Confidence nadzornikConfidence, Confidence dateConfidence) {
+            this.caseNumber = caseNumber;
+            this.prijavitelj = prijavitelj;
+            this.zavezanec = zavezanec;
+            this.opis = opis;
+            this.nadzornik = nadzornik;
+            this.datumDodelitve = datumDodelitve;
+            this.zavezanecOpisConfidence = zavezanecOpisConfidence;
+            this.nadzornikConfidence = nadzornikConfidence;
+            this.dateConfidence = dateConfidence;
+        }
+
+        /**
+         * @return the case number, or null if the # cell doesn't have one
+         */
+        public String getCaseNumber() {
+            return caseNumber;
+        }
+
+        public String getPrijavitelj() {
+            return prijavitelj;
+        }
+
+        public String getZavezanec() {
+            return zavezanec;
+        }
+
+        /**
+         * @return the short case description, or null if it couldn't be split off
+         */
+        public String getOpis() {
+            return opis;
+        }
+
+        public String getNadzornik() {
+            return nadzornik;
+        }
+
+        public Date getDatumDodelitve() {
+            return datumDodelitve;
+        }
+
+        public Confidence getZavezanecOpisConfidence() {
+            return zavezanecOpisConfidence;
+        }
+
+        public Confidence getNadzornikConfidence() {
+            return nadzornikConfidence;
+        }
+
+        /**
+         * HIGH if the date is a real one, LOW if it rolled over (31.11. is 1.12.)
+         */
+        public Confidence getDateConfidence() {
+            return dateConfidence;
+        }
+
+        /**
+         * The confidence of the whole row (the worst of the two splits and the date)
+         */
+        public Confidence getConfidence() {
+            Confidence worse = zavezanecOpisConfidence.compareTo(nadzornikConfidence) > 0
+                ? zavezanecOpisConfidence : nadzornikConfidence;
+            return worse.compareTo(dateConfidence) > 0 ? worse : dateConfidence;
+        }
+
+        public Case toCase() {
+            Case c = new Case(prijavitelj, zavezanec, opis, nadzornik, datumDodelitve);
+            c.setCaseNumber(caseNumber);
+            return c;
+        }
+    }
+
+    /**
+     * Parse the cells of a row.
+     *
+     * @throws ParseException if the row doesn't have 5 cells or there's no date
+     */
+    public Row parse(String[] cols) throws ParseException {
+        if (cols.length != 5)
+            throw new ParseException("o_O row has " + cols.length + " columns instead of 5", 0);
+
+        Confidence dConfidence = Confidence.HIGH;
+        Date datumDodelitve = parseDate(cols[4].trim(), false);
+        if (datumDodelitve == null) {
+            dConfidence = Confidence.LOW;
+            datumDodelitve = parseDate(cols[4].trim(), true);
+        }
+        if (datumDodelitve == null)
+            throw new ParseException("o_O invalid date '" + cols[4].trim() + "'", 0);
+
+        // zavezanec, short case description
+        String zavezanecOpis = cols[2].trim();
+        String[] zo = null;
+        Confidence zoConfidence = Confidence.HIGH;
+        for (Pattern separator : STRICT_SEPARATORS) {
+            zo = splitInTwo(separator, zavezanecOpis);
+            if (zo != null)
+                break;
+        }
+        if (zo == null) {
+            zoConfidence = Confidence.MEDIUM;
+            for (Pattern separator : LOOSE_SEPARATORS) {
+                zo = splitInTwo(separator, zavezanecOpis);
+                if (zo != null)
+                    break;
+            }
+        }
+        if (zo == null) {
+            zoConfidence = Confidence.LOW;
+            zo = splitAtLast(LOOSE_SEPARATORS, zavezanecOpis);
+        }
+
+        // nadzornikInSteviloPrimerov
+        String nadzornikInSteviloPrimerov = cols[3].trim();
+        String nadzornik = nadzornikInSteviloPrimerov;
+        Confidence nConfidence = Confidence.LOW;
+        Matcher m = NADZORNIK_SEPARATOR.matcher(nadzornikInSteviloPrimerov);
+        if (m.find()) {
+            nadzornik = nadzornikInSteviloPrimerov.substring(0, m.start());
+            nConfidence = Confidence.HIGH;
+        }
+
+        String caseNumber = CaseNumberHandler.findCaseNumber(cols[0]);
+        return new Row(caseNumber, cols[1].trim(), zo[0], zo[1], nadzornik, datumDodelitve, zoConfidence, nConfidence, dConfidence);
+    }
+
+    /**
+     * Parse a hand typed dd.MM.yy date, rolling over the ones that don't
+     * exist (31.11.14 is 1.12.2014).
+     *
+     * @return the date, or null if it isn't one
+     */
+    public static Date parseDate(String s) {
+        return parseDate(s, true);
+    }
+
+    /**
+     * @param lenient roll over the dates that don't exist, like a lenient
+     *                SimpleDateFormat, instead of returning null
+     */
+    public static Date parseDate(String s, boolean lenient) {
+        Matcher m = DATE.matcher(s);
+        if (! m.find())
+            return null;
+
+        int year = Integer.parseInt(m.group(3));
+        if (year < 100)
+            year += 2000;
+        int month = Integer.parseInt(m.group(2)), day = Integer.parseInt(m.group(1));
+        LocalDate date;
+        try {
+            date = LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            if (! lenient)
+                return null;
+            date = LocalDate.of(year, 1, 1).plusMonths(month - 1).plusDays(day - 1);
+        }
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * Split into exactly two non-empty parts, with the same idea of "parts" as
+     * String.split (trailing empty parts don't count).
+     *
+     * @return the trimmed parts, or null if there aren't exactly two
+     */
+    public static String[] splitInTwo(Pattern separator, String s) {
+        Matcher m = separator.matcher(s);
+        if (! m.find())
+            return null;
+        int firstStart = m.start(), firstEnd = m.end();
+
+        int secondStart = s.length();
+        if (m.find()) {
+            secondStart = m.start();
+            // anything after the second separator has to be more separators
+            int end = m.end();
+            while (m.find()) {
+                if (m.start() != end)
+                    return null;
+                end = m.end();
+            }
+            if (end != s.length())
+                return null;
+        }
+        if (secondStart <= firstEnd)
+            return null;
+
+        return new String[] { s.substring(0, firstStart).trim(), s.substring(firstEnd, secondStart).trim() };
+    }
+
+    /**
+     * Split at the last separator there is.
+     *
+     * @return the trimmed parts; the second one is null if there's no separator at all
+     */
+    private static String[] splitAtLast(Pattern[] separators, String s) {
+        int start = -1, end = -1;
+        for (Pattern separator : separators) {
+            Matcher m = separator.matcher(s);
+            while (m.find()) {
+                if (m.start() > start && m.end() > m.start()) {
+                    start = m.start();
+                    end = m.end();
+                }
+            }
+        }
+        if (start == -1)
+            return new String[] { s, null };
+        return new String[] { s.substring(0, start).trim(), s.substring(end).trim() };
+    }
+}
@@ -0,0 +1,506 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+/**
+ * CaseStore - the cases from the case list, in a local file
+ *
+ * The store is an append-only log of tab separated lines, one per upsert:
+ * key, case number, datum dodelitve, nadzornik, prijavitelj, zavezanec, opis,
+ * closed. The log is replayed into memory on open, and the cases are indexed
+ * by nadzornik, datum dodelitve and case number, so the usual questions
+ * (cases per nadzornik per month, open cases older than so and so) are
+ * answered without touching the list .doc (or Tika) at all.
+ *
+ * Upserting a case that didn't change doesn't write anything, so parsing
+ * the same list again is cheap. Once the log has more than twice as many
+ * lines as there are cases, it's compacted (rewritten atomically). The
+ * cases that are gone from the list (of the years that were parsed) are
+ * deleted.
+ *
+ * A case is keyed by its case number, or by its datum dodelitve,
+ * prijavitelj, zavezanec and opis if the case number isn't known. The list
+ * does have rows that are the same in all of those (the same complaint filed
+ * twice on one day), so these are numbered in the order they're put in the
+ * store (key|2, key|3, ..); the first one's key has no number. When a case's
+ * number becomes known, its old entry is deleted (a line with just the key).
+ *
+ * The list doesn't say when a case was closed. That comes from the
+ * documents linked to the case (see {@link ParseDocuments}): a case is
+ * closed on the date of its first ustavitev, odločba or neuvedba. Parsing
+ * the list again keeps the closed date; a case doesn't open up again.
+ *
+ * Usage: java -cp .. CaseStore <store file> <query> [args]<ul>
+ * <li>per-month [from yyyy-MM-dd] [to yyyy-MM-dd] - cases per nadzornik per month</li>
+ * <li>open-older-than <days> - cases assigned more than days ago, without a closing document</li>
+ * <li>nadzornik <name> - the nadzornik's cases</li>
+ * <li>case <case number></li></ul>
+ *
+ * @author ikolar
+ */
+public class CaseStore implements Closeable {
+    public static final Log logger =
+        LogFactory.getLog(CaseStore.class);
+
+    public static final String FILENAME = "porocila.cases";
+    private static final String ENCODING = "UTF-8";
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+    private static final String MONTH_FORMAT = "yyyy-MM";
+    private static final int COLUMNS = 8;
+
+    private final File file;
+    private Writer log;
+    private int logLines = 0;
+
+    private final Map<String, Case> cases = new HashMap<String, Case>();
+    private final Map<String, String> lines = new HashMap<String, String>(); // key -> its last log line
+    private final Map<Case, String> keys = new IdentityHashMap<Case, String>(); // case -> its key
+
+    // indexes
+    private final Map<String, Set<String>> byNadzornik = new HashMap<String, Set<String>>();
+    private final NavigableMap<Date, Set<String>> byDatumDodelitve = new TreeMap<Date, Set<String>>();
+    private final Map<String, String> byCaseNumber = new HashMap<String, String>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp .. CaseStore <store file> per-month [from] [to] | open-older-than <days> | nadzornik <name> | case <case number>");
+            System.exit(-1);
+        }
+
+        CaseStore store = CaseStore.open(new File(args[0]));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, ENCODING));
+        try {
+            SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+            String query = args[1];
+            if ("per-month".equals(query)) {
+                Date from = args.length > 2 ? df.parse(args[2]) : null;
+                Date to = args.length > 3 ? df.parse(args[3]) : null;
+                for (Map.Entry<String, SortedMap<String, Integer>> n : store.countPerNadzornikPerMonth(from, to).entrySet()) {
+                    for (Map.Entry<String, Integer> m : n.getValue().entrySet())
+                        out.print(n.getKey() + "\t" + m.getKey() + "\t" + m.getValue() + "\n");
+                }
+            } else if ("open-older-than".equals(query) && args.length > 2) {
+                Calendar cal = Calendar.getInstance();
+                cal.add(Calendar.DAY_OF_MONTH, -Integer.parseInt(args[2]));
+                store.print(out, store.openAssignedBefore(cal.getTime()));
+            } else if ("nadzornik".equals(query) && args.length > 2) {
+                store.print(out, store.findByNadzornik(args[2]));
+            } else if ("case".equals(query) && args.length > 2) {
+                Case c = store.findByCaseNumber(args[2]);
+                store.print(out, c == null ? Collections.<Case>emptyList() : Collections.singletonList(c));
+            } else {
+                System.err.println("o_O unknown query '" + query + "'");
+                System.exit(-1);
+            }
+        } finally {
+            out.flush();
+            store.close();
+        }
+    }
+
+    private synchronized void print(PrintWriter out, Collection<Case> cases) {
+        for (Case c : cases)
+            out.print(toLine(keys.get(c), c) + "\n");
+    }
+
+    protected CaseStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the store, replaying its log. A missing file is an empty store.
+     */
+    public static CaseStore open(File file) throws IOException {
+        CaseStore store = new CaseStore(file);
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    store.logLines++;
+                    if (line.indexOf('\t') == -1) {
+                        store.unindex(line);
+                        continue;
+                    }
+                    Case c = fromLine(line);
+                    if (c == null) {
+                        logger.warn("o_O skipping malformed line in case store " + file + ": " + line);
+                        continue;
+                    }
+                    store.index(line.substring(0, line.indexOf('\t')), c, line);
+                }
+            } finally {
+                in.close();
+            }
+            logger.info(String.format("Loaded %d cases from case store %s", store.cases.size(), file));
+        }
+        return store;
+    }
+
+    /**
+     * Insert or update a case.
+     *
+     * @return false if the store already had it, just like that
+     */
+    public synchronized boolean put(Case c) throws IOException {
+        return put(key(c), c, fallbackKey(c));
+    }
+
+    /**
+     * @param fallback the case's key if it didn't have a number (with the
+     *                 row's number among the same ones, if any)
+     */
+    private boolean put(String key, Case c, String fallback) throws IOException {
+        // from before opis was in the key
+        if (c.getCaseNumber() == null && key.equals(fallbackKey(c)))
+            drop(legacyKey(c), c);
+
+        Case stored = cases.get(key);
+        if (c.getClosed() == null && stored != null)
+            c.setClosed(stored.getClosed()); // the list doesn't know, keep what the documents said
+        String line = toLine(key, c);
+        if (line.equals(lines.get(key)))
+            return false;
+
+        // the case got its number, drop the entry from before
+        if (c.getCaseNumber() != null) {
+            drop(fallback, c);
+            drop(legacyKey(c), c);
+        }
+
+        append(line);
+        index(key, c, line);
+        return true;
+    }
+
+    /**
+     * Delete the entry under the old key of the case, keeping its closed date.
+     */
+    private void drop(String old, Case c) throws IOException {
+        Case stored = cases.get(old);
+        if (stored == null)
+            return;
+        if (c.getClosed() == null)
+            c.setClosed(stored.getClosed());
+        append(old);
+        unindex(old);
+    }
+
+    /**
+     * Close a case of the store (as found by one of the find methods), if it
+     * isn't closed already or was closed later.
+     *
+     * @return false if nothing changed
+     */
+    public synchronized boolean setClosed(Case c, Date closed) throws IOException {
+        String key = keys.get(c);
+        if (key == null)
+            throw new IllegalArgumentException("o_O case isn't in the store: " + toLine(key(c), c));
+        if (c.getClosed() != null && ! c.getClosed().after(closed))
+            return false;
+
+        c.setClosed(closed);
+        String line = toLine(key, c);
+        append(line);
+        index(key, c, line);
+        return true;
+    }
+
+    private void append(String line) throws IOException {
+        if (log == null)
+            log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), ENCODING));
+        log.write(line);
+        log.write("\n");
+        logLines++;
+    }
+
+    /**
+     * Insert or update a bunch of cases (the whole list of the years they're
+     * from, in its order), then flush the log (and compact it if it's grown
+     * too long). Cases without a number that have the same key are all kept.
+     *
+     * The cases of those years that aren't in the list anymore (deleted
+     * rows, or rows with a typo fixed in the key) are deleted.
+     *
+     * @return number of new, changed or deleted cases
+     */
+    public synchronized int putAll(Collection<Case> cs) throws IOException {
+        Map<String, Integer> seen = new HashMap<String, Integer>();
+        Set<String> keys = new HashSet<String>();
+        Date first = null, last = null;
+        int changed = 0;
+        for (Case c : cs) {
+            // every row counts, so a row keeps its number when the one before it gets a case number
+            String fallback = fallbackKey(c);
+            Integer n = seen.get(fallback);
+            seen.put(fallback, n == null ? 1 : n + 1);
+            if (n != null)
+                fallback += "|" + (n + 1);
+
+            String key = c.getCaseNumber() == null ? fallback : key(c);
+            keys.add(key);
+            if (put(key, c, fallback))
+                changed++;
+
+            if (first == null || c.getDatumDodelitve().before(first))
+                first = c.getDatumDodelitve();
+            if (last == null || c.getDatumDodelitve().after(last))
+                last = c.getDatumDodelitve();
+        }
+
+        if (first != null) {
+            List<String> gone = new ArrayList<String>();
+            for (Set<String> assigned : range(startOfYear(first, 0), startOfYear(last, 1)).values()) {
+                for (String key : assigned) {
+                    if (! keys.contains(key))
+                        gone.add(key);
+                }
+            }
+            for (String key : gone) {
+                append(key);
+                unindex(key);
+            }
+            if (! gone.isEmpty())
+                logger.info(String.format("Deleted %d cases that aren't on the list anymore from case store %s", gone.size(), file));
+            changed += gone.size();
+        }
+        flush();
+        if (logLines > 2 * cases.size())
+            compact();
+        return changed;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (log != null)
+            log.flush();
+    }
+
+    /**
+     * Rewrite the log with just the current version of each case.
+     */
+    public synchronized void compact() throws IOException {
+        close();
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                for (String line : new TreeMap<String, String>(lines).values()) {
+                    out.write(line);
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+        logger.info(String.format("Compacted case store %s from %d to %d lines", file, logLines, lines.size()));
+        logLines = lines.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    public synchronized int size() {
+        return cases.size();
+    }
+
+    /**
+     * All the cases, by datum dodelitve, in a compact table for bulk analysis.
+     */
+    public synchronized CaseTable toTable() {
+        return new CaseTable(findAssigned(null, null));
+    }
+
+    public synchronized Case findByCaseNumber(String caseNumber) {
+        String key = byCaseNumber.get(caseNumber);
+        return key == null ? null : cases.get(key);
+    }
+
+    /**
+     * The nadzornik's cases, by datum dodelitve.
+     */
+    public synchronized List<Case> findByNadzornik(String nadzornik) {
+        return sorted(byNadzornik.get(nadzornik));
+    }
+
+    /**
+     * Cases assigned in [from, to), by datum dodelitve. Either end can be null.
+     */
+    public synchronized List<Case> findAssigned(Date from, Date to) {
+        List<Case> found = new ArrayList<Case>();
+        for (Set<String> keys : range(from, to).values()) {
+            for (String key : keys)
+                found.add(cases.get(key));
+        }
+        return found;
+    }
+
+    /**
+     * Open cases assigned before the date (that is, open for longer than that).
+     */
+    public synchronized List<Case> openAssignedBefore(Date date) {
+        List<Case> found = new ArrayList<Case>();
+        for (Case c : findAssigned(null, date)) {
+            if (c.getClosed() == null)
+                found.add(c);
+        }
+        return found;
+    }
+
+    /**
+     * Number of cases assigned to each nadzornik in each month (yyyy-MM)
+     * of [from, to). Either end can be null.
+     */
+    public synchronized SortedMap<String, SortedMap<String, Integer>> countPerNadzornikPerMonth(Date from, Date to) {
+        SimpleDateFormat month = new SimpleDateFormat(MONTH_FORMAT);
+        SortedMap<String, SortedMap<String, Integer>> counts = new TreeMap<String, SortedMap<String, Integer>>();
+        for (Map.Entry<Date, Set<String>> e : range(from, to).entrySet()) {
+            String m = month.format(e.getKey());
+            for (String key : e.getValue()) {
+                String nadzornik = cases.get(key).getNadzornik();
+                SortedMap<String, Integer> perMonth = counts.get(nadzornik);
+                if (perMonth == null) {
+                    perMonth = new TreeMap<String, Integer>();
+                    counts.put(nadzornik, perMonth);
+                }
+                Integer n = perMonth.get(m);
+                perMonth.put(m, n == null ? 1 : n + 1);
+            }
+        }
+        return counts;
+    }
+
+    private NavigableMap<Date, Set<String>> range(Date from, Date to) {
+        if (from == null && to == null)
+            return byDatumDodelitve;
+        if (from == null)
+            return byDatumDodelitve.headMap(to, false);
+        if (to == null)
+            return byDatumDodelitve.tailMap(from, true);
+        return byDatumDodelitve.subMap(from, true, to, false);
+    }
+
+    /**
+     * January 1st of the date's year, plus some years.
+     */
+    private static Date startOfYear(Date date, int plusYears) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        cal.set(cal.get(Calendar.YEAR) + plusYears, Calendar.JANUARY, 1, 0, 0, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTime();
+    }
+
+    private List<Case> sorted(Set<String> keys) {
+        List<Case> found = new ArrayList<Case>();
+        if (keys == null)
+            return found;
+        for (String key : keys)
+            found.add(cases.get(key));
+        Collections.sort(found, new Comparator<Case>() {
+            public int compare(Case a, Case b) {
+                return a.getDatumDodelitve().compareTo(b.getDatumDodelitve());
+            }
+        });
+        return found;
+    }
+
+    private void index(String key, Case c, String line) {
+        unindex(key);
+        cases.put(key, c);
+        lines.put(key, line);
+        keys.put(c, key);
+        add(byNadzornik, c.getNadzornik(), key);
+        add(byDatumDodelitve, c.getDatumDodelitve(), key);
+        if (c.getCaseNumber() != null)
+            byCaseNumber.put(c.getCaseNumber(), key);
+    }
+
+    private void unindex(String key) {
+        Case old = cases.remove(key);
+        lines.remove(key);
+        if (old != null) {
+            keys.remove(old);
+            remove(byNadzornik, old.getNadzornik(), key);
+            remove(byDatumDodelitve, old.getDatumDodelitve(), key);
+            if (old.getCaseNumber() != null)
+                byCaseNumber.remove(old.getCaseNumber());
+        }
+    }
+
+    private static <K> void add(Map<K, Set<String>> index, K k, String key) {
+        Set<String> keys = index.get(k);
+        if (keys == null) {
+            keys = new TreeSet<String>();
+            index.put(k, keys);
+        }
+        keys.add(key);
+    }
+
+    private static <K> void remove(Map<K, Set<String>> index, K k, String key) {
+        Set<String> keys = index.get(k);
+        if (keys == null)
+            return;
+        keys.remove(key);
+        if (keys.isEmpty())
+            index.remove(k);
+    }
+
+    /**
+     * The case number, or the datum dodelitve, prijavitelj, zavezanec and opis.
+     */
+    protected static String key(Case c) {
+        if (c.getCaseNumber() != null)
+            return clean(c.getCaseNumber());
+        return fallbackKey(c);
+    }
+
+    private static String fallbackKey(Case c) {
+        return legacyKey(c) + "|" + clean(c.getOpis());
+    }
+
+    private static String legacyKey(Case c) {
+        return clean(new SimpleDateFormat(DATE_FORMAT).format(c.getDatumDodelitve()) + "|" +
+            c.getPrijavitelj() + "|" + c.getZavezanec());
+    }
+
+    protected static String toLine(String key, Case c) {
+        SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+        return key + "\t" + clean(c.getCaseNumber()) + "\t" + df.format(c.getDatumDodelitve()) + "\t" +
+            clean(c.getNadzornik()) + "\t" + clean(c.getPrijavitelj()) + "\t" + clean(c.getZavezanec()) + "\t" +
+            clean(c.getOpis()) + "\t" + (c.getClosed() == null ? "" : df.format(c.getClosed()));
+    }
+
+    protected static Case fromLine(String line) {
+        String[] cols = line.split("\t", -1);
+        if (cols.length != COLUMNS)
+            return null;
+        try {
+            SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+            Case c = new Case(cols[4], cols[5], emptyToNull(cols[6]), cols[3], df.parse(cols[2]));
+            c.setCaseNumber(emptyToNull(cols[1]));
+            if (! cols[7].isEmpty())
+                c.setClosed(df.parse(cols[7]));
+            return c;
+        } catch (ParseException pe) {
+            return null;
+        }
+    }
+
+    private static String clean(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -0,0 +1,264 @@
+package si.iprs.reports;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * A compact, column-wise table of cases for bulk analysis (years of lists).
+ *
+ * The same few dozen nadzorniki and the regular prijavitelji and zavezanci
+ * repeat thousands of times, so names are dictionary-encoded: each column
+ * holds int ids into a shared dictionary of distinct names. Dates are epoch
+ * days in int arrays, and the free text (opis, case number) is appended into
+ * one char arena, with offsets and lengths per row. A row costs a few ints
+ * and its own text, instead of a Case with five Strings and two Dates.
+ *
+ * Grouping by nadzornik is then a scan over an int array, with the id as
+ * the index of the counter.
+ *
+ * Rows are appended, never changed. Not thread safe.
+ *
+ * @author ikolar
+ */
+public class CaseTable {
+    /** no date (a case that's still open) */
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    /** id of a missing name or text */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_ROWS = 1024;
+
+    // distinct names, id = index
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final Set<Integer> nadzorniki = new TreeSet<Integer>();
+
+    // the columns
+    private int size = 0;
+    private int[] nadzornik = new int[INITIAL_ROWS];
+    private int[] prijavitelj = new int[INITIAL_ROWS];
+    private int[] zavezanec = new int[INITIAL_ROWS];
+    private int[] datumDodelitve = new int[INITIAL_ROWS];
+    private int[] closed = new int[INITIAL_ROWS];
+
+    // free text: opis and case number of row r are at text[2r] and text[2r + 1]
+    private char[] arena = new char[INITIAL_ROWS * 32];
+    private int arenaSize = 0;
+    private int[] textStart = new int[INITIAL_ROWS * 2];
+    private int[] textLength = new int[INITIAL_ROWS * 2];
+
+    public CaseTable() {
+    }
+
+    public CaseTable(Collection<Case> cases) {
+        for (Case c : cases)
+            add(c);
+    }
+
+    /**
+     * Append a case.
+     *
+     * @return its row
+     */
+    public int add(Case c) {
+        if (size == nadzornik.length)
+            grow();
+
+        int row = size++;
+        nadzornik[row] = id(c.getNadzornik());
+        nadzorniki.add(nadzornik[row]);
+        prijavitelj[row] = id(c.getPrijavitelj());
+        zavezanec[row] = id(c.getZavezanec());
+        datumDodelitve[row] = toEpochDay(c.getDatumDodelitve());
+        closed[row] = toEpochDay(c.getClosed());
+        putText(2 * row, c.getOpis());
+        putText(2 * row + 1, c.getCaseNumber());
+        return row;
+    }
+
+    private void grow() {
+        int n = nadzornik.length * 2;
+        nadzornik = Arrays.copyOf(nadzornik, n);
+        prijavitelj = Arrays.copyOf(prijavitelj, n);
+        zavezanec = Arrays.copyOf(zavezanec, n);
+        datumDodelitve = Arrays.copyOf(datumDodelitve, n);
+        closed = Arrays.copyOf(closed, n);
+        textStart = Arrays.copyOf(textStart, 2 * n);
+        textLength = Arrays.copyOf(textLength, 2 * n);
+    }
+
+    private int id(String name) {
+        if (name == null)
+            return NONE;
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    private void putText(int i, String s) {
+        if (s == null) {
+            textStart[i] = NONE;
+            textLength[i] = 0;
+            return;
+        }
+        if (arenaSize + s.length() > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + s.length()));
+        s.getChars(0, s.length(), arena, arenaSize);
+        textStart[i] = arenaSize;
+        textLength[i] = s.length();
+        arenaSize += s.length();
+    }
+
+    private String getText(int i) {
+        return textStart[i] == NONE ? null : new String(arena, textStart[i], textLength[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The name with the id (nadzornik, prijavitelj or zavezanec).
+     */
+    public String getName(int id) {
+        return id == NONE ? null : names.get(id);
+    }
+
+    /**
+     * The id of the name, or NONE if no row has it.
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Ids of all the nadzorniki in the table.
+     */
+    public int[] getNadzornikIds() {
+        int[] a = new int[nadzorniki.size()];
+        int i = 0;
+        for (int id : nadzorniki)
+            a[i++] = id;
+        return a;
+    }
+
+    public int getNadzornikId(int row) {
+        return nadzornik[check(row)];
+    }
+
+    public int getPrijaviteljId(int row) {
+        return prijavitelj[check(row)];
+    }
+
+    public int getZavezanecId(int row) {
+        return zavezanec[check(row)];
+    }
+
+    public int getDatumDodelitve(int row) {
+        return datumDodelitve[check(row)];
+    }
+
+    /**
+     * @return the epoch day the case was closed on, or NO_DATE
+     */
+    public int getClosed(int row) {
+        return closed[check(row)];
+    }
+
+    public String getOpis(int row) {
+        return getText(2 * check(row));
+    }
+
+    public String getCaseNumber(int row) {
+        return getText(2 * check(row) + 1);
+    }
+
+    /**
+     * The row as a Case again.
+     */
+    public Case toCase(int row) {
+        Case c = new Case(getName(prijavitelj[check(row)]), getName(zavezanec[row]), getOpis(row),
+            getName(nadzornik[row]), toDate(datumDodelitve[row]));
+        c.setCaseNumber(getCaseNumber(row));
+        c.setClosed(toDate(closed[row]));
+        return c;
+    }
+
+    /**
+     * Number of cases per nadzornik id assigned in [fromDay, toDay) (epoch
+     * days; NO_DATE for no bound).
+     */
+    public int[] countByNadzornik(int fromDay, int toDay) {
+        int[] counts = new int[names.size()];
+        for (int row = 0; row < size; row++) {
+            if (inRange(datumDodelitve[row], fromDay, toDay))
+                counts[nadzornik[row]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Number of cases per nadzornik id per month, for the months from
+     * start (inclusive) to end (exclusive); counts[id][month index].
+     */
+    public int[][] countByNadzornikPerMonth(YearMonth start, YearMonth end) {
+        int months = (int) (end.getYear() * 12L + end.getMonthValue() - start.getYear() * 12L - start.getMonthValue());
+        int[][] counts = new int[names.size()][Math.max(0, months)];
+        int fromDay = (int) start.atDay(1).toEpochDay();
+        int toDay = (int) end.atDay(1).toEpochDay();
+        for (int row = 0; row < size; row++) {
+            int day = datumDodelitve[row];
+            if (! inRange(day, fromDay, toDay))
+                continue;
+            LocalDate date = LocalDate.ofEpochDay(day);
+            int month = (date.getYear() - start.getYear()) * 12 + date.getMonthValue() - start.getMonthValue();
+            counts[nadzornik[row]][month]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Rows of the cases still open that were assigned before the day.
+     */
+    public int[] openAssignedBefore(int day) {
+        int[] rows = new int[size];
+        int n = 0;
+        for (int row = 0; row < size; row++) {
+            if (closed[row] == NO_DATE && datumDodelitve[row] < day)
+                rows[n++] = row;
+        }
+        return Arrays.copyOf(rows, n);
+    }
+
+    private static boolean inRange(int day, int fromDay, int toDay) {
+        return (fromDay == NO_DATE || day >= fromDay) && (toDay == NO_DATE || day < toDay);
+    }
+
+    private int check(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("o_O no row " + row + " in a table of " + size + " cases");
+        return row;
+    }
+
+    /**
+     * The date as an epoch day in the default time zone (the one the list's
+     * dates are parsed in), or NO_DATE.
+     */
+    public static int toEpochDay(Date date) {
+        if (date == null)
+            return NO_DATE;
+        return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    public static Date toDate(int epochDay) {
+        if (epochDay == NO_DATE)
+            return null;
+        return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+}
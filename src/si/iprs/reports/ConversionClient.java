@@ -0,0 +1,128 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Thin client for the {@link ConversionServer}: no Tika, no Aspose, so it
+ * starts in a blink.
+ *
+ * With a request on the command line (e.g. "html a.doc a.html", "accept
+ * a.doc", "parse-list", "shutdown") it sends that, prints the reply and
+ * exits with 0 if the reply was "ok". The paths are made absolute, since
+ * the server has its own working directory.
+ *
+ * Without arguments it sends the request lines from stdin as they are (tab
+ * separated, absolute paths) and prints a reply line for each, so a script
+ * can push a whole batch through one connection.
+ *
+ * The server's token is read from its token file (see {@link ConversionServer}).
+ *
+ * @author ikolar
+ */
+public class ConversionClient {
+    private static final String ENCODING = "UTF-8";
+
+    public static final String DEFAULT_TOKEN_FILE = ".porocila-server.token";
+
+    public static void main(String[] args) throws IOException {
+        // not ConversionServer.loadProperties(), that would load the server (and take stdout away)
+        Properties props = new Properties();
+        InputStream propsIn = ConversionClient.class.getResourceAsStream("porocila.properties");
+        if (propsIn != null) {
+            try {
+                props.load(propsIn);
+            } finally {
+                propsIn.close();
+            }
+        }
+        int port = Integer.parseInt(props.getProperty("server_port", "" + ConversionServer.DEFAULT_PORT).trim());
+
+        File tokenFile = tokenFile(props);
+        String token;
+        try {
+            BufferedReader tokenIn = new BufferedReader(new InputStreamReader(new FileInputStream(tokenFile), ENCODING));
+            try {
+                token = tokenIn.readLine();
+            } finally {
+                tokenIn.close();
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("o_O no server token in " + tokenFile + ", is the conversion server running as this user?");
+            System.exit(2);
+            return;
+        }
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (ConnectException e) {
+            System.err.println("o_O no conversion server on port " + port + ", start one with: run.sh si.iprs.reports.ConversionServer");
+            System.exit(2);
+            return;
+        }
+
+        boolean ok = true;
+        try {
+            BufferedReader replies = new BufferedReader(new InputStreamReader(socket.getInputStream(), ENCODING));
+            Writer requests = new OutputStreamWriter(socket.getOutputStream(), ENCODING);
+            requests.write("auth\t" + token + "\n");
+            requests.flush();
+            String ready = replies.readLine();
+            if (! "ready".equals(ready))
+                throw new IOException("o_O the server on port " + port + " didn't say it's ready" + (ready == null ? "" : ": " + ready));
+
+            if (args.length > 0) {
+                StringBuilder request = new StringBuilder(args[0]);
+                for (int i = 1; i < args.length; i++)
+                    request.append('\t').append(new File(args[i]).getAbsolutePath());
+                ok = call(request.toString(), requests, replies);
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, ENCODING));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (! line.trim().isEmpty())
+                        ok &= call(line, requests, replies);
+                }
+            }
+
+            requests.write("quit\n");
+            requests.flush();
+        } finally {
+            socket.close();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Where the server leaves its token (here and not in the server, which
+     * takes stdout away as soon as it's loaded).
+     */
+    protected static File tokenFile(Properties props) {
+        String file = props.getProperty("server_token_file");
+        if (file == null || file.trim().isEmpty())
+            return new File(System.getProperty("user.home"), DEFAULT_TOKEN_FILE);
+        return new File(file.trim());
+    }
+
+    /**
+     * Send the request and print the reply.
+     *
+     * @return true if the reply was "ok"
+     */
+    private static boolean call(String request, Writer requests, BufferedReader replies) throws IOException {
+        requests.write(request + "\n");
+        requests.flush();
+
+        String command = request.split("\t", 2)[0];
+        if ("shutdown".equals(command) || "quit".equals(command))
+            return true; // no reply to those
+
+        String reply = replies.readLine();
+        if (reply == null)
+            throw new IOException("o_O the server hung up on: " + request);
+        System.out.println(reply);
+        return reply.equals("ok") || reply.startsWith("ok\t");
+    }
+}
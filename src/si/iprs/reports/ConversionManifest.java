@@ -0,0 +1,340 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.security.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Manifest of converted documents, kept in the destination directory.
+ *
+ * For every source document we remember its size, mtime and content hash
+ * at the time it was converted, and which output files were made from it.
+ * A source is reconverted only if its content actually changed: size and
+ * mtime are checked first (cheap), and only if those differ is the content
+ * hashed. Outputs of sources that disappeared are deleted.
+ *
+ * The fields for the report (nadzornik, type, date, case number) are kept here
+ * too, so the report can be written without reconverting unchanged documents.
+ *
+ * The manifest is a tab separated file, one source per line:
+ * source, size, mtime, sha1, merged, html, merged html, nadzornik, type,
+ * date, case number. Lines from before the report fields had only the first 7.
+ *
+ * @author ikolar
+ */
+public class ConversionManifest {
+    public static final Log logger =
+        LogFactory.getLog(ConversionManifest.class);
+
+    public static final String FILENAME = "porocila.manifest";
+    private static final String ENCODING = "UTF-8";
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private final File file;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * What we knew about a source when it was last converted.
+     */
+    protected static class Entry {
+        String source;
+        long size, mtime;
+        String hash;
+        String merged, html, mergedHtml;
+        String nadzornik, type, date, caseNumber; // null if unknown
+
+        String[] outputs() {
+            return new String[] { merged, html, mergedHtml };
+        }
+    }
+
+    protected ConversionManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest from the destination dir. A missing manifest is an
+     * empty one.
+     */
+    public static ConversionManifest load(File destinationDir) throws IOException {
+        ConversionManifest manifest = new ConversionManifest(new File(destinationDir, FILENAME));
+        if (! manifest.file.exists())
+            return manifest;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest.file), ENCODING));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length != 7 && cols.length != 11) {
+                    logger.warn("o_O skipping malformed manifest line in " + manifest.file + ": " + line);
+                    continue;
+                }
+                Entry e = new Entry();
+                e.source = cols[0];
+                e.size = Long.parseLong(cols[1]);
+                e.mtime = Long.parseLong(cols[2]);
+                e.hash = cols[3];
+                e.merged = cols[4];
+                e.html = cols[5];
+                e.mergedHtml = cols[6];
+                if (cols.length == 11) {
+                    e.nadzornik = cols[7];
+                    e.type = cols[8];
+                    e.date = cols[9];
+                    e.caseNumber = cols[10];
+                }
+                manifest.entries.put(e.source, e);
+            }
+        } finally {
+            in.close();
+        }
+        logger.info(String.format("Loaded %d entries from manifest %s", manifest.entries.size(), manifest.file));
+        return manifest;
+    }
+
+    /**
+     * Write the manifest back into the destination dir.
+     */
+    public void save() throws IOException {
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                for (Entry e : new TreeMap<String, Entry>(entries).values()) {
+                    out.write(String.format("%s\t%d\t%d\t%s\t%s\t%s\t%s",
+                        e.source, e.size, e.mtime, e.hash, e.merged, e.html, e.mergedHtml));
+                    if (e.nadzornik != null)
+                        out.write(String.format("\t%s\t%s\t%s\t%s", e.nadzornik, e.type, e.date, e.caseNumber));
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+    }
+
+    /**
+     * Did the document's source change since it was last converted?
+     *
+     * Sources that aren't in the manifest yet (converted before there was one)
+     * count as unchanged if all their outputs are newer than the source.
+     */
+    public boolean isChanged(Document doc) throws IOException {
+        File src = doc.getSrc();
+        Entry e = entries.get(key(src));
+        if (e == null) {
+            for (File output : new File[] { doc.getMerged(), doc.getHtml(), doc.getMergedHtml() }) {
+                if (output == null)
+                    continue;
+                if (! output.exists() || output.lastModified() < src.lastModified())
+                    return true;
+            }
+            return false;
+        }
+
+        if (e.size == src.length() && e.mtime == src.lastModified())
+            return false;
+
+        // touched or copied over, but maybe not edited
+        String hash = hash(src);
+        if (! hash.equals(e.hash))
+            return true;
+        e.size = src.length();
+        e.mtime = src.lastModified();
+        return false;
+    }
+
+    /**
+     * Is the document's source in the manifest at all?
+     */
+    public boolean contains(Document doc) throws IOException {
+        return entries.containsKey(key(doc.getSrc()));
+    }
+
+    /**
+     * Remember the document's source as converted.
+     */
+    public void update(Document doc) throws IOException {
+        File src = doc.getSrc();
+        Entry e = new Entry();
+        e.source = key(src);
+        e.size = src.length();
+        e.mtime = src.lastModified();
+        e.hash = hash(src);
+        e.merged = path(doc.getMerged());
+        e.html = path(doc.getHtml());
+        e.mergedHtml = path(doc.getMergedHtml());
+        e.nadzornik = nullToEmpty(doc.getNadzornik());
+        e.type = nullToEmpty(doc.getType());
+        e.date = doc.getDocumentDate() == null ? "" : new SimpleDateFormat(DATE_FORMAT).format(doc.getDocumentDate());
+        e.caseNumber = nullToEmpty(doc.getCaseNumber());
+        entries.put(e.source, e);
+    }
+
+    /**
+     * Fill the document's report fields in from the manifest.
+     *
+     * @return false if the manifest doesn't have them (then the document's
+     *         html has to be converted again to get them)
+     */
+    public boolean restore(Document doc) throws IOException {
+        Entry e = entries.get(key(doc.getSrc()));
+        if (e == null || e.nadzornik == null)
+            return false;
+
+        doc.setCaseNumber(e.caseNumber.isEmpty() ? null : e.caseNumber);
+        if (! e.date.isEmpty()) {
+            try {
+                doc.setDocumentDate(new SimpleDateFormat(DATE_FORMAT).parse(e.date));
+            } catch (ParseException pe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget sources under sourceDir that weren't seen in the latest scan,
+     * and delete the outputs made from them.
+     *
+     * @return number of removed sources
+     */
+    public int removeOrphans(File sourceDir, Collection<File> seen) throws IOException {
+        return removeOrphans(sourceDir, seen, Collections.<File>emptyList());
+    }
+
+    /**
+     * Same, but sources in the skipped directories (which weren't scanned)
+     * are kept.
+     */
+    public int removeOrphans(File sourceDir, Collection<File> seen, Collection<File> skipped) throws IOException {
+        String prefix = key(sourceDir) + File.separator;
+        Set<String> seenKeys = new HashSet<String>();
+        for (File src : seen)
+            seenKeys.add(key(src));
+        List<String> skippedPrefixes = new ArrayList<String>();
+        for (File dir : skipped)
+            skippedPrefixes.add(key(dir) + File.separator);
+
+        int removed = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (! e.source.startsWith(prefix) || seenKeys.contains(e.source) || startsWithAny(e.source, skippedPrefixes))
+                continue;
+
+            removeOutputs(e);
+            it.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Forget a deleted source (or all the sources in a deleted directory),
+     * and delete the outputs made from them.
+     *
+     * @return number of removed sources
+     */
+    public int remove(File source) throws IOException {
+        String key = key(source);
+        int removed = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (! e.source.equals(key) && ! e.source.startsWith(key + File.separator))
+                continue;
+
+            removeOutputs(e);
+            it.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * The sources in the manifest (canonical paths).
+     */
+    public Set<String> getSources() {
+        return new HashSet<String>(entries.keySet());
+    }
+
+    /**
+     * The outputs made from all the sources in the manifest.
+     */
+    public Set<File> getOutputs() {
+        Set<File> outputs = new HashSet<File>();
+        for (Entry e : entries.values()) {
+            for (String output : e.outputs()) {
+                if (! output.isEmpty())
+                    outputs.add(new File(output));
+            }
+        }
+        return outputs;
+    }
+
+    private static boolean startsWithAny(String s, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (s.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static void removeOutputs(Entry e) {
+        logger.info("Source " + e.source + " is gone, removing its outputs ..");
+        for (String output : e.outputs()) {
+            if (output.isEmpty())
+                continue;
+            File f = new File(output);
+            if (f.exists() && ! f.delete())
+                logger.warn("o_O could not delete orphaned output " + f);
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s.replace('\t', ' ');
+    }
+
+    private static String key(File f) throws IOException {
+        return f.getCanonicalPath();
+    }
+
+    private static String path(File f) throws IOException {
+        return f == null ? "" : f.getCanonicalPath();
+    }
+
+    /**
+     * SHA-1 of the file's content, in hex.
+     */
+    protected static String hash(File f) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                digest.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
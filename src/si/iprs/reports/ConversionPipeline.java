@@ -0,0 +1,450 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.tika.metadata.Metadata;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.logging.*;
+
+/**
+ * Staged conversion pipeline for case documents.
+ *
+ * There are three stages, each with its own bounded pool of workers:<ol>
+ * <li>merge - accept all changes with Aspose (.merged.docx)</li>
+ * <li>html - convert the original document to html with Tika (.html), and
+ * pick up the case number and date for the report on the way</li>
+ * <li>merged html - convert the merged document to html (.merged.html)</li></ol>
+ *
+ * The merge and html stages of a document are independent and start right
+ * away. The merged html stage of a document is queued as soon as its own merge
+ * is done, so it doesn't have to wait for the rest of the batch to be merged.
+ *
+ * Documents without a merged file (see {@link Document#getMerged()}) are merged
+ * into memory, and the merged html stage reads them from there. That saves
+ * writing and reading back every merged file. Merged documents larger than
+ * the merge memory limit spill into a temp file instead.
+ *
+ * Documents without any tracked changes skip the merge and the merged html
+ * stages altogether (the fast path): their merged html is just a link to
+ * their html.
+ *
+ * A failed stage is logged and the document's later stages are skipped;
+ * the rest of the batch carries on. {@link #await()} then reports the failures.
+ * Documents over the converter's size limit are just skipped (and logged),
+ * they aren't failures.
+ * A {@link Listener} is told when all of a document's stages are done.
+ *
+ * Every stage of every document is timed into the pipeline's
+ * {@link PipelineStats}.
+ *
+ * With a {@link WorkerPool}, the stage workers hand the merges and html
+ * conversions to the pool's child JVMs instead of doing them in process.
+ * Merged documents then go through a temp file (the worker can't hand us
+ * its memory). A document that hangs or crashes a worker fails with a
+ * {@link WorkerException}.
+ *
+ * @author ikolar
+ */
+public class ConversionPipeline {
+    public static final Log logger =
+        LogFactory.getLog(ConversionPipeline.class);
+
+    private final ExecutorService mergeExecutor;
+    private final ExecutorService htmlExecutor;
+    private final ExecutorService mergedHtmlExecutor;
+
+    private final AcceptAllChanges acceptor = new AcceptAllChanges();
+    private final DocToHtml converter = DocToHtml.getInstance();
+    private final RevisionDetector detector = new RevisionDetector();
+    private final PipelineStats stats;
+
+    // queued tasks that haven't finished yet (a Phaser can't count past 65535 of them)
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+    private final List<Exception> failures =
+        Collections.synchronizedList(new ArrayList<Exception>());
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger fastPath = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    // merged documents bigger than this go into a temp file instead of memory
+    private volatile int mergeMemoryBytes = 16 * 1024 * 1024;
+
+    private volatile Listener listener;
+
+    // if set, conversions run in child processes
+    private volatile WorkerPool workers;
+
+    /**
+     * Gets called (from a worker thread) once all of a document's stages
+     * have finished.
+     */
+    public interface Listener {
+        void converted(Document doc);
+        void failed(Document doc, Exception e);
+    }
+
+    /**
+     * Stages of a document that haven't finished yet.
+     */
+    private static class Progress {
+        final Document doc;
+        int remaining;
+        Exception failure;
+        volatile boolean noRevisions;
+
+        Progress(Document doc, int remaining) {
+            this.doc = doc;
+            this.remaining = remaining;
+        }
+    }
+
+    public ConversionPipeline(int mergeThreads, int htmlThreads, int mergedHtmlThreads) {
+        this(mergeThreads, htmlThreads, mergedHtmlThreads, new PipelineStats());
+    }
+
+    public ConversionPipeline(int mergeThreads, int htmlThreads, int mergedHtmlThreads, PipelineStats stats) {
+        this.stats = stats;
+        this.mergeExecutor = newStagePool("merge", mergeThreads);
+        this.htmlExecutor = newStagePool("html", htmlThreads);
+        this.mergedHtmlExecutor = newStagePool("merged-html", mergedHtmlThreads);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    public void setMergeMemoryBytes(int mergeMemoryBytes) {
+        this.mergeMemoryBytes = mergeMemoryBytes;
+    }
+
+    /**
+     * Convert in the pool's worker processes. The pool is closed on {@link #shutdown()}.
+     */
+    public void setWorkers(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Queue the stages the document needs.
+     *
+     * If the merged html is needed but the merge isn't, the merged file
+     * should already be on disk. Documents without a merged file always need
+     * the merge for their merged html.
+     */
+    public void submit(final Document doc, boolean merge, boolean html, final boolean mergedHtml) {
+        final Progress progress = new Progress(doc, (merge ? 1 : 0) + (html ? 1 : 0) + (mergedHtml ? 1 : 0));
+        if (progress.remaining == 0) {
+            finished(progress, 0, null);
+            return;
+        }
+
+        if (html) {
+            submit(htmlExecutor, PipelineStats.HTML, progress, doc.getSrc().length(), 1, new Callable<Long>() {
+                public Long call() throws Exception {
+                    if (workers != null) {
+                        WorkerPool.Html result = workers.toHtml(doc.getSrc(), doc.getHtml());
+                        doc.setCaseNumber(result.getCaseNumber());
+                        doc.setDocumentDate(result.getModified());
+                        return doc.getHtml().length();
+                    }
+
+                    // pick the report fields up on the way
+                    CaseNumberHandler caseNumber = new CaseNumberHandler();
+                    Metadata metadata = converter.toHtml(doc.getSrc(), doc.getHtml(), caseNumber);
+                    doc.setCaseNumber(caseNumber.getCaseNumber());
+                    doc.setDocumentDate(DocumentReport.getModified(metadata));
+                    return doc.getHtml().length();
+                }
+            });
+        }
+
+        if (merge && workers != null) {
+            submit(mergeExecutor, PipelineStats.MERGE, progress, doc.getSrc().length(), mergedHtml ? 2 : 1, new Callable<Long>() {
+                public Long call() throws Exception {
+                    if (Boolean.FALSE.equals(detector.hasRevisions(doc.getSrc()))) {
+                        skipMerge(progress, mergedHtml);
+                        return 0L;
+                    }
+                    converter.checkSize(doc.getSrc());
+
+                    boolean temp = doc.getMerged() == null;
+                    File merged = temp ? File.createTempFile(".merge-", ".docx", doc.getMergedHtml().getAbsoluteFile().getParentFile())
+                        : doc.getMerged();
+                    boolean hasRevisions;
+                    try {
+                        hasRevisions = workers.merge(doc.getSrc(), merged);
+                    } catch (IOException e) {
+                        if (temp)
+                            discard(merged);
+                        throw e;
+                    }
+                    long bytes = hasRevisions ? merged.length() : 0L;
+                    if (temp && ! (hasRevisions && mergedHtml))
+                        discard(merged);
+                    if (! hasRevisions) {
+                        skipMerge(progress, mergedHtml);
+                        return 0L;
+                    }
+                    if (mergedHtml)
+                        submitMergedHtml(progress, merged, temp);
+                    return bytes;
+                }
+            });
+        } else if (merge && doc.getMerged() == null) {
+            submit(mergeExecutor, PipelineStats.MERGE, progress, doc.getSrc().length(), mergedHtml ? 2 : 1, new Callable<Long>() {
+                public Long call() throws Exception {
+                    if (Boolean.FALSE.equals(detector.hasRevisions(doc.getSrc()))) {
+                        skipMerge(progress, mergedHtml);
+                        return 0L;
+                    }
+                    converter.checkSize(doc.getSrc());
+
+                    DeferredFileOutputStream merged = new DeferredFileOutputStream(mergeMemoryBytes,
+                        ".merge-", ".docx", doc.getMergedHtml().getAbsoluteFile().getParentFile());
+                    boolean hasRevisions;
+                    try {
+                        hasRevisions = acceptor.acceptAllChanges(doc.getSrc(), merged);
+                    } finally {
+                        merged.close();
+                    }
+                    if (! hasRevisions || ! mergedHtml) {
+                        discard(merged);
+                        if (! hasRevisions)
+                            skipMerge(progress, mergedHtml);
+                        return hasRevisions ? merged.getByteCount() : 0L;
+                    }
+                    submitMergedHtml(progress, merged);
+                    return merged.getByteCount();
+                }
+            });
+        } else if (merge) {
+            submit(mergeExecutor, PipelineStats.MERGE, progress, doc.getSrc().length(), mergedHtml ? 2 : 1, new Callable<Long>() {
+                public Long call() throws Exception {
+                    if (Boolean.FALSE.equals(detector.hasRevisions(doc.getSrc()))) {
+                        skipMerge(progress, mergedHtml);
+                        return 0L;
+                    }
+                    converter.checkSize(doc.getSrc());
+                    acceptor.acceptAllChanges(doc.getSrc(), doc.getMerged(), true);
+                    if (mergedHtml)
+                        submitMergedHtml(progress, doc.getMerged(), false);
+                    return doc.getMerged().length();
+                }
+            });
+        } else if (mergedHtml) {
+            submitMergedHtml(progress, doc.getMerged(), false);
+        }
+    }
+
+    /**
+     * The document has no tracked changes, so its merged html will be the
+     * same as its html. Don't bother converting it again.
+     */
+    private void skipMerge(Progress progress, boolean mergedHtml) {
+        progress.noRevisions = true;
+        if (mergedHtml)
+            finished(progress, 1, null); // the merged html stage
+    }
+
+    /**
+     * Convert the merged document from memory (or from the temp file it
+     * spilled into, which is deleted afterwards).
+     */
+    private void submitMergedHtml(final Progress progress, final DeferredFileOutputStream merged) {
+        final Document doc = progress.doc;
+        submit(mergedHtmlExecutor, PipelineStats.MERGED_HTML, progress, merged.getByteCount(), 1, new Callable<Long>() {
+            public Long call() throws Exception {
+                try {
+                    if (merged.isInMemory())
+                        converter.toHtml(new ByteArrayInputStream(merged.getData()), doc.getSrc().getName() + ".merged.docx", doc.getMergedHtml());
+                    else
+                        converter.toHtml(merged.getFile(), doc.getMergedHtml());
+                } finally {
+                    discard(merged);
+                }
+                return doc.getMergedHtml().length();
+            }
+        });
+    }
+
+    private static void discard(DeferredFileOutputStream merged) {
+        if (! merged.isInMemory())
+            discard(merged.getFile());
+    }
+
+    private static void discard(File tmp) {
+        if (tmp.exists() && ! tmp.delete())
+            logger.warn("o_O could not delete temp file " + tmp);
+    }
+
+    /**
+     * Convert the merged file, and delete it afterwards if it's a temp file.
+     */
+    private void submitMergedHtml(final Progress progress, final File merged, final boolean temp) {
+        final Document doc = progress.doc;
+        submit(mergedHtmlExecutor, PipelineStats.MERGED_HTML, progress, merged.length(), 1, new Callable<Long>() {
+            public Long call() throws Exception {
+                try {
+                    if (! merged.exists()) {
+                        logger.warn("o_O can't make merged html file if merged file " + merged + " doesn't exist ..");
+                        return 0L;
+                    }
+                    if (workers != null)
+                        workers.toHtml(merged, doc.getMergedHtml());
+                    else
+                        converter.toHtml(merged, doc.getMergedHtml());
+                } finally {
+                    if (temp)
+                        discard(merged);
+                }
+                return doc.getMergedHtml().length();
+            }
+        });
+    }
+
+    /**
+     * Queue a stage. The task returns the number of bytes it wrote. If it
+     * fails, stagesOnFailure of the document's stages (this one and the ones
+     * that depend on it) are done for.
+     */
+    private void submit(ExecutorService executor, final String stage, final Progress progress, final long bytesIn,
+            final int stagesOnFailure, final Callable<Long> task) {
+        synchronized (pendingLock) {
+            pending++;
+        }
+        Runnable run = new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    long bytesOut = task.call();
+                    stats.record(stage, progress.doc.getSrc().getPath(), System.nanoTime() - start, bytesIn, bytesOut, false);
+                    done.incrementAndGet();
+                    finished(progress, 1, null);
+                } catch (DocumentTooLargeException e) {
+                    stats.record(stage, progress.doc.getSrc().getPath(), System.nanoTime() - start, bytesIn, 0, true);
+                    logger.warn(e.getMessage());
+                    finished(progress, stagesOnFailure, e);
+                } catch (Exception e) {
+                    stats.record(stage, progress.doc.getSrc().getPath(), System.nanoTime() - start, bytesIn, 0, true);
+                    logger.error("o_O conversion of " + progress.doc.getSrc() + " failed: " + e.getMessage(), e);
+                    failures.add(e);
+                    finished(progress, stagesOnFailure, e);
+                } finally {
+                    arrived();
+                }
+            }
+        };
+        try {
+            executor.execute(run);
+        } catch (RuntimeException e) {
+            arrived();
+            throw e;
+        }
+    }
+
+    private void arrived() {
+        synchronized (pendingLock) {
+            if (--pending == 0)
+                pendingLock.notifyAll();
+        }
+    }
+
+    private void finished(Progress progress, int stages, Exception failure) {
+        boolean last;
+        synchronized (progress) {
+            if (failure != null && progress.failure == null)
+                progress.failure = failure;
+            progress.remaining -= stages;
+            last = progress.remaining <= 0;
+        }
+        if (! last)
+            return;
+
+        if (progress.failure instanceof DocumentTooLargeException)
+            skipped.incrementAndGet();
+
+        if (progress.noRevisions && progress.failure == null) {
+            Document doc = progress.doc;
+            long start = System.nanoTime();
+            try {
+                AtomicFiles.linkOrCopy(doc.getHtml(), doc.getMergedHtml());
+                stats.record(PipelineStats.LINK, doc.getSrc().getPath(), System.nanoTime() - start, 0, 0, false);
+                fastPath.incrementAndGet();
+            } catch (IOException e) {
+                stats.record(PipelineStats.LINK, doc.getSrc().getPath(), System.nanoTime() - start, 0, 0, true);
+                logger.error("o_O could not link merged html " + doc.getMergedHtml() + " to " + doc.getHtml(), e);
+                failures.add(e);
+                progress.failure = e;
+            }
+        }
+
+        if (listener == null)
+            return;
+
+        if (progress.failure == null)
+            listener.converted(progress.doc);
+        else
+            listener.failed(progress.doc, progress.failure);
+    }
+
+    /**
+     * Wait until every queued stage (including the ones queued while waiting)
+     * is finished.
+     *
+     * @throws IOException if any of the stages failed
+     */
+    public void await() throws IOException {
+        // a task queues the stages that depend on it before it's finished, so zero means all done
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("o_O interrupted while waiting for the pipeline");
+                }
+            }
+        }
+
+        List<Exception> failed;
+        synchronized (failures) {
+            failed = new ArrayList<Exception>(failures);
+            failures.clear();
+        }
+        logger.info(String.format("Pipeline finished %d conversions, %d failed, %d skipped as too large, %d documents without tracked changes took the fast path",
+            done.getAndSet(0), failed.size(), skipped.getAndSet(0), fastPath.getAndSet(0)));
+        if (! failed.isEmpty())
+            throw new IOException("o_O " + failed.size() + " conversion(s) failed, check the log for details." +
+                " First failure: " + failed.get(0).getMessage(), failed.get(0));
+    }
+
+    /**
+     * Stop the workers (and the worker processes). Call after the last {@link #await()}.
+     */
+    public void shutdown() {
+        mergeExecutor.shutdown();
+        htmlExecutor.shutdown();
+        mergedHtmlExecutor.shutdown();
+        if (workers != null)
+            workers.close();
+    }
+
+    private static ExecutorService newStagePool(final String stage, int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, stage + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,280 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Keeps the conversion engines (Aspose, Tika) warm in one process, so the
+ * scripts don't pay for a JVM and a Tika start for every single file.
+ *
+ * Speaks the {@link ConversionWorker} protocol (merge, html, accept,
+ * parse-list, ping, quit), either on a socket on localhost (server_port in
+ * the properties, 7373 by default) or, with "stdin", on stdin and stdout.
+ * Each connection gets its own thread (up to server_threads at once) and can
+ * send any number of requests. "shutdown" stops the server.
+ *
+ * Anyone on the machine can connect to localhost, so on the socket the
+ * first line has to be "auth" and the server's token. The token is made up
+ * once the server is listening, and written into a file only the owner can
+ * read (server_token_file, ~/.porocila-server.token by default, which is in
+ * the user's profile on Windows); the client reads it from there. The file
+ * is deleted when the server stops. merge and html only write under destination_dir (and not
+ * at all if it's not set).
+ *
+ * Use {@link ConversionClient} (or anything that can write a line to a
+ * socket) to talk to it.
+ *
+ * @author ikolar
+ */
+public class ConversionServer {
+    // in stdin mode the replies own stdout (see ConversionWorker), so this has to come before the logger
+    private static final PrintStream stdout = ConversionWorker.stdout;
+
+    public static final Log logger =
+        LogFactory.getLog(ConversionServer.class);
+
+    public static final int DEFAULT_PORT = 7373;
+    private static final String ENCODING = "UTF-8";
+    private static final int MAX_AUTH_LINE = 1024;
+
+    private final ConversionWorker worker = new ConversionWorker() {
+        protected boolean isLast(String command) {
+            return "quit".equals(command) || "shutdown".equals(command);
+        }
+
+        protected String handle(String[] request) {
+            if (("merge".equals(request[0]) || "html".equals(request[0])) && request.length == 3) {
+                try {
+                    if (! isAllowedOutput(new File(request[2])))
+                        return "error\t" + SecurityException.class.getName() + "\to_O only writing under the destination dir " +
+                            outputDir + ", not " + request[2].replaceAll("[\t\r\n]+", " ");
+                } catch (IOException e) {
+                    return "error\t" + e.getClass().getName() + "\to_O bad output path";
+                }
+            }
+            return super.handle(request);
+        }
+    };
+
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final String token;
+    private final File outputDir; // null: no outputs at all
+
+    public static void main(String[] args) throws IOException {
+        Properties props = loadProperties();
+        DocToHtml.getInstance().setMaxDocumentBytes(Long.parseLong(props.getProperty("max_document_bytes", "" + 200L * 1024 * 1024).trim()));
+        DocToHtml.getInstance().setMaxChars(Long.parseLong(props.getProperty("max_document_chars", "" + 50L * 1000 * 1000).trim()));
+
+        if (args.length > 0 && "stdin".equals(args[0])) {
+            new ConversionWorker().serve(System.in, stdout);
+            return;
+        }
+
+        int port = Integer.parseInt(props.getProperty("server_port", "" + DEFAULT_PORT).trim());
+        int threads = Integer.parseInt(props.getProperty("server_threads", "" + Runtime.getRuntime().availableProcessors()).trim());
+        String dir = props.getProperty("destination_dir");
+        File outputDir = dir == null || dir.trim().isEmpty() ? null : new File(dir.trim()).getCanonicalFile();
+        if (outputDir == null)
+            logger.warn("o_O no destination_dir in the properties, merge and html requests will be refused");
+
+        // bind first, a second server on the same port mustn't take the running one's token file over
+        ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        String token = newToken();
+        File tokenFile = ConversionClient.tokenFile(props);
+        try {
+            writeToken(tokenFile, token);
+            new ConversionServer(socket, threads, token, outputDir).serve();
+        } finally {
+            socket.close();
+            deleteToken(tokenFile, token);
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Write the token into a file only the owner can read (it's made owner
+     * only before the token goes in).
+     */
+    private static void writeToken(File file, String token) throws IOException {
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            restrictToOwner(tmp.toPath());
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                out.write(token + "\n");
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+        logger.info("Wrote the server token to " + file);
+    }
+
+    /**
+     * Let only the owner at the file: POSIX permissions where there are
+     * any, an ACL with just the owner on Windows. If the file system has
+     * neither, the file stays as it is (in the user's home, by default).
+     */
+    private static void restrictToOwner(Path file) throws IOException {
+        FileStore store = Files.getFileStore(file);
+        if (store.supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(file, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        } else if (store.supportsFileAttributeView(AclFileAttributeView.class)) {
+            AclFileAttributeView acl = Files.getFileAttributeView(file, AclFileAttributeView.class);
+            AclEntry owner = AclEntry.newBuilder()
+                .setType(AclEntryType.ALLOW)
+                .setPrincipal(acl.getOwner())
+                .setPermissions(EnumSet.allOf(AclEntryPermission.class))
+                .build();
+            try {
+                acl.setAcl(Collections.singletonList(owner));
+            } catch (IOException e) {
+                logger.warn("o_O could not make " + file + " readable by the owner only, it's just in the user's directory: " + e.getMessage());
+            }
+        } else {
+            logger.warn("o_O " + file + " can't be made readable by the owner only on this file system, it's just in the user's directory");
+        }
+    }
+
+    /**
+     * Delete the token file, if it's still ours.
+     */
+    private static void deleteToken(File file, String token) {
+        try {
+            if (file.exists() && token.equals(new String(Files.readAllBytes(file.toPath()), ENCODING).trim()) && ! file.delete())
+                logger.warn("o_O could not delete the server token " + file);
+        } catch (IOException e) {
+            logger.warn("o_O could not delete the server token " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The properties file, if there is one (the server can do without).
+     */
+    protected static Properties loadProperties() throws IOException {
+        Properties props = new Properties();
+        InputStream in = ConversionServer.class.getResourceAsStream("porocila.properties");
+        if (in != null) {
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return props;
+    }
+
+    /**
+     * @param token what the connections have to say first
+     * @param outputDir where merge and html can write, null for nowhere
+     */
+    public ConversionServer(ServerSocket server, int threads, String token, File outputDir) {
+        this.server = server;
+        this.token = token;
+        this.outputDir = outputDir;
+        this.connections = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connection-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Answer connections until someone asks for a shutdown.
+     */
+    public void serve() throws IOException {
+        // warm up before the first request has to wait for it
+        DocToHtml.getInstance();
+        logger.info("Conversion server listening on " + server.getLocalSocketAddress());
+
+        try {
+            while (true) {
+                final Socket connection;
+                try {
+                    connection = server.accept();
+                } catch (SocketException e) {
+                    if (server.isClosed())
+                        break; // shut down
+                    throw e;
+                }
+                connections.execute(new Runnable() {
+                    public void run() {
+                        handle(connection);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            logger.info("Conversion server stopped");
+        }
+    }
+
+    private void handle(Socket connection) {
+        try {
+            try {
+                InputStream in = connection.getInputStream();
+                String auth = readLine(in);
+                if (auth == null || ! MessageDigest.isEqual(("auth\t" + token).getBytes(ENCODING), auth.getBytes(ENCODING))) {
+                    logger.warn("o_O connection from " + connection.getRemoteSocketAddress() + " didn't have the token, hanging up");
+                    connection.getOutputStream().write(("error\t" + SecurityException.class.getName() + "\to_O bad or missing token\n").getBytes(ENCODING));
+                    return;
+                }
+
+                String last = worker.serve(in, connection.getOutputStream());
+                if ("shutdown".equals(last)) {
+                    logger.info("Shutdown requested by " + connection.getRemoteSocketAddress());
+                    server.close();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (IOException e) {
+            logger.warn("o_O connection from " + connection.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One line, byte by byte, so nothing after it is read ahead of the worker.
+     *
+     * @return the line, or null if the input ends first or it's too long
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_AUTH_LINE)
+                return null;
+            line.write(b);
+        }
+        return b == -1 ? null : line.toString(ENCODING).replaceFirst("\r$", "");
+    }
+
+    /**
+     * Is the file under the output dir?
+     */
+    private boolean isAllowedOutput(File f) throws IOException {
+        return outputDir != null && f.getCanonicalPath().startsWith(outputDir.getPath() + File.separator);
+    }
+}
@@ -0,0 +1,171 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.util.*;
+import org.apache.tika.metadata.Metadata;
+import org.apache.commons.logging.*;
+
+/**
+ * A child JVM that converts documents for the {@link WorkerPool}.
+ *
+ * The engines (Aspose, Tika) are set up once, and then the worker reads
+ * requests from stdin and answers on stdout, one tab separated line each:<ul>
+ * <li>merge &lt;doc&gt; &lt;merged&gt; - accept all changes into the merged
+ * file; "ok", then 1 if the document had changes (0 and no file if not)</li>
+ * <li>html &lt;doc&gt; &lt;html&gt; - convert to html; "ok", then the case
+ * number and the modified date (millis), either empty if not found</li>
+ * <li>fields &lt;doc&gt; - just the case number and the modified date, as
+ * for html, but fast (see {@link DocToHtml#extractFields}); "ok", then the
+ * fields, then the characters read</li>
+ * <li>accept &lt;doc&gt; - what AcceptAllChanges does; "ok", then the merged file</li>
+ * <li>parse-list [&lt;list&gt;] - what ParseInspectionsList does, with the
+ * list file from the properties if none is given; "ok"</li>
+ * <li>ping - "ok"</li>
+ * <li>quit</li></ul>
+ * A document over the size limit is answered with "too-large", its size and
+ * the limit; any other failure with "error", the exception and the message.
+ * The worker says "ready" once it's up. Paths should be absolute.
+ *
+ * Only the replies go to stdout, everything else (the log, whatever the
+ * libraries print) goes to stderr.
+ *
+ * Run with the max document bytes and max document chars (0 for no limit).
+ * The {@link ConversionServer} speaks the same protocol over a socket.
+ *
+ * @author ikolar
+ */
+public class ConversionWorker {
+    private static final String ENCODING = "UTF-8";
+
+    // grab stdout before log4j's console appender does
+    static final PrintStream stdout = System.out;
+    static {
+        System.setOut(System.err);
+    }
+
+    public static final Log logger =
+        LogFactory.getLog(ConversionWorker.class);
+
+    // text read by the fields request at most, like extract_chars
+    private static final long EXTRACT_CHARS = 16 * 1024;
+
+    private final AcceptAllChanges acceptor = new AcceptAllChanges();
+    private final DocToHtml converter = DocToHtml.getInstance();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ConversionWorker <max document bytes> <max document chars>");
+            System.exit(-1);
+        }
+
+        ConversionWorker worker = new ConversionWorker();
+        worker.converter.setMaxDocumentBytes(Long.parseLong(args[0]));
+        worker.converter.setMaxChars(Long.parseLong(args[1]));
+
+        worker.serve(System.in, stdout);
+    }
+
+    /**
+     * Answer the requests until "quit" or the end of the input.
+     *
+     * @return the last request ("quit", or null at the end of the input)
+     */
+    protected String serve(InputStream input, OutputStream output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, ENCODING));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(output, ENCODING));
+        out.print("ready\n");
+        out.flush();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] request = line.split("\t", -1);
+            if (isLast(request[0]))
+                return request[0];
+            out.print(handle(request) + "\n");
+            out.flush();
+        }
+        return null;
+    }
+
+    /**
+     * Does the request end the conversation?
+     */
+    protected boolean isLast(String command) {
+        return "quit".equals(command);
+    }
+
+    /**
+     * @return the reply line
+     */
+    protected String handle(String[] request) {
+        try {
+            if ("merge".equals(request[0]) && request.length == 3)
+                return "ok\t" + (merge(new File(request[1]), new File(request[2])) ? "1" : "0");
+            if ("html".equals(request[0]) && request.length == 3)
+                return "ok\t" + toHtml(new File(request[1]), new File(request[2]));
+            if ("fields".equals(request[0]) && request.length == 2)
+                return "ok\t" + fields(new File(request[1]));
+            if ("accept".equals(request[0]) && request.length == 2)
+                return "ok\t" + acceptor.acceptAllChanges(new File(request[1])).getPath();
+            if ("parse-list".equals(request[0]) && request.length <= 2) {
+                parseList(request.length == 2 && ! request[1].isEmpty() ? new File(request[1]) : null);
+                return "ok";
+            }
+            if ("ping".equals(request[0]) && request.length == 1)
+                return "ok";
+            return "error\t" + IllegalArgumentException.class.getName() + "\to_O unknown request: " + clean(Arrays.toString(request));
+        } catch (DocumentTooLargeException e) {
+            return "too-large\t" + e.getSize() + "\t" + e.getLimit();
+        } catch (Exception e) {
+            logger.error("o_O " + request[0] + " of " + (request.length > 1 ? request[1] : "?") + " failed: " + e.getMessage(), e);
+            return "error\t" + e.getClass().getName() + "\t" + clean(e.getMessage());
+        }
+    }
+
+    private boolean merge(File doc, File merged) throws IOException {
+        converter.checkSize(doc);
+        File tmp = AtomicFiles.newTempFile(merged);
+        try {
+            boolean hasRevisions;
+            OutputStream out = AtomicFiles.newOutputStream(tmp);
+            try {
+                hasRevisions = acceptor.acceptAllChanges(doc, out);
+            } finally {
+                out.close();
+            }
+            if (hasRevisions)
+                AtomicFiles.commit(tmp, merged);
+            return hasRevisions;
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+    }
+
+    private String toHtml(File doc, File html) throws IOException {
+        CaseNumberHandler caseNumber = new CaseNumberHandler();
+        Metadata metadata = converter.toHtml(doc, html, caseNumber);
+        Date modified = DocumentReport.getModified(metadata);
+        return (caseNumber.getCaseNumber() == null ? "" : caseNumber.getCaseNumber()) + "\t" +
+            (modified == null ? "" : Long.toString(modified.getTime()));
+    }
+
+    private String fields(File doc) throws IOException {
+        DocumentFields fields = converter.extractFields(doc, EXTRACT_CHARS);
+        return (fields.getCaseNumber() == null ? "" : fields.getCaseNumber()) + "\t" +
+            (fields.getModified() == null ? "" : Long.toString(fields.getModified().getTime())) + "\t" + fields.getChars();
+    }
+
+    /**
+     * One at a time, they all write into the same case store.
+     */
+    private static synchronized void parseList(File listFile) throws Exception {
+        new ParseInspectionsList(listFile).parse();
+    }
+
+    /**
+     * One line, no tabs.
+     */
+    private static String clean(String s) {
+        return s == null ? "" : s.replaceAll("[\t\r\n]+", " ");
+    }
+}
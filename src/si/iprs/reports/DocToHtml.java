@@ -6,6 +6,7 @@ import java.net.*;
 import javax.xml.transform.*;
 import javax.xml.transform.sax.*;
 import javax.xml.transform.stream.*;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.apache.tika.sax.*;
 import org.apache.tika.cli.*;
@@ -20,11 +21,41 @@ import org.apache.commons.logging.*;
  * Converts .doc/.docx file into html using the Apache Tika library 
  *
  * The q&amp; way: take the org.apache.tika.cli.TikaCLI class and just copy the needed bootstrapping code here.
+ *
+ * An instance is a long-lived conversion engine: the detector and the parser are
+ * set up once (service loading and the parser registry are slow) and shared by all
+ * the threads using the instance. The static callTika() methods use a shared
+ * default instance.
+ *
+ * Memory is bounded per document: sources larger than the maximum document
+ * size are skipped (with a {@link DocumentTooLargeException}) before Tika
+ * loads them, and the text passed on from a document is capped at the
+ * maximum number of characters; longer documents are truncated (and the
+ * truncation logged), see {@link LimitedContentHandler}. Both limits are off
+ * (0) by default.
  */
 
 public class DocToHtml {
     private static final Log logger = LogFactory.getLog(TikaCLI.class);
 
+    /** Charset of the html output */
+    public static final String ENCODING = "UTF-8";
+
+    private static DocToHtml defaultInstance;
+
+    private final Parser parser;
+
+    // limits, 0 for none
+    private volatile long maxDocumentBytes = 0;
+    private volatile long maxChars = 0;
+
+    // transformer factories aren't thread safe, but they are expensive to look up
+    private final ThreadLocal<SAXTransformerFactory> transformerFactories = new ThreadLocal<SAXTransformerFactory>() {
+        protected SAXTransformerFactory initialValue() {
+            return (SAXTransformerFactory) SAXTransformerFactory.newInstance();
+        }
+    };
+
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
             System.err.println("Usage: java -cp .. DocToHtml <doc or docx file>");
@@ -34,63 +65,274 @@ public class DocToHtml {
         callTika(new File(args[0]).getCanonicalFile());
     }
 
+    /**
+     * Initialize the tika framework.
+     */
+    public DocToHtml() {
+        Detector detector = new DefaultDetector();
+        this.parser = new AutoDetectParser(detector);
+    }
+
+    /**
+     * The shared engine used by the static methods.
+     */
+    public static synchronized DocToHtml getInstance() {
+        if (defaultInstance == null)
+            defaultInstance = new DocToHtml();
+        return defaultInstance;
+    }
+
+    /**
+     * Skip source documents larger than this many bytes (0 for no limit).
+     */
+    public void setMaxDocumentBytes(long maxDocumentBytes) {
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    public long getMaxDocumentBytes() {
+        return maxDocumentBytes;
+    }
+
+    /**
+     * Truncate documents after this many characters of text (0 for no limit).
+     */
+    public void setMaxChars(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    public long getMaxChars() {
+        return maxChars;
+    }
+
+    /**
+     * @throws DocumentTooLargeException if the document is over the size limit
+     */
+    public void checkSize(File doc) throws DocumentTooLargeException {
+        long limit = maxDocumentBytes;
+        if (limit > 0 && doc.length() > limit)
+            throw new DocumentTooLargeException(doc, doc.length(), limit);
+    }
 
     public static void callTika(File doc, File html) throws IOException {
-        String s = DocToHtml.callTika(doc);
+        getInstance().toHtml(doc, html);
+    }
+
+    /**
+     * Convert the .doc/.docx file into html
+     */
+    public static String callTika(File doc) throws IOException {
+        return getInstance().toHtml(doc);
+    }
+
+    /**
+     * Convert a batch of .doc/.docx files into html. Documents that fail to
+     * convert are logged and left out of the result.
+     *
+     * @return html of each document, in the order of the input
+     */
+    public Map<File, String> convert(Collection<File> docs) {
+        Map<File, String> htmls = new LinkedHashMap<File, String>();
+        for (File doc : docs) {
+            try {
+                htmls.put(doc, toHtml(doc));
+            } catch (IOException e) {
+                logger.error("o_O could not convert " + doc + " to html: " + e.getMessage(), e);
+            }
+        }
+        return htmls;
+    }
+
+    /**
+     * Convert the .doc/.docx file into an UTF-8 html file.
+     *
+     * The html is streamed straight into a temp file next to the target,
+     * which is then renamed over the target. The document is never held in
+     * memory as a whole, and a failed conversion leaves no partial file behind.
+     */
+    public void toHtml(File doc, File html) throws IOException {
+        toHtml(doc, html, null);
+    }
+
+    /**
+     * Convert the .doc/.docx file into an UTF-8 html file, and pass the SAX
+     * events to another content handler as well, so it can pick things out
+     * of the document on the way.
+     *
+     * @param tee extra content handler, or null
+     * @return metadata of the document
+     */
+    public Metadata toHtml(File doc, File html, ContentHandler tee) throws IOException {
+        checkSize(doc);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, doc.getName());
+        URL url = doc.toURI().toURL();
+        logger.info("Parsing url " + url);
+        toHtml(TikaInputStream.get(url, metadata), metadata, html, tee);
+        return metadata;
+    }
+
+    /**
+     * Convert a .doc/.docx that isn't on disk (e.g. a merged document
+     * straight from Aspose) into an UTF-8 html file. The stream is closed.
+     *
+     * @param name file name of the document, a hint for type detection
+     */
+    public void toHtml(InputStream doc, String name, File html) throws IOException {
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+        logger.info("Parsing stream " + name);
+        toHtml(TikaInputStream.get(doc), metadata, html, null);
+    }
 
-        FileWriter out = new FileWriter(html);
+    private void toHtml(InputStream input, Metadata metadata, File html, ContentHandler tee) throws IOException {
+        File tmp = AtomicFiles.newTempFile(html);
         try {
-            out.write(s);
+            OutputStream output = AtomicFiles.newOutputStream(tmp);
+            try {
+                render(input, metadata, output, tee);
+            } finally {
+                output.close();
+            }
+            AtomicFiles.commit(tmp, html);
         } finally {
-            out.flush();
-            out.close();
+            AtomicFiles.discard(tmp);
         }
     }
 
     /**
      * Convert the .doc/.docx file into html
      */
-    public static String callTika(File doc) throws IOException {
-        // initialize the tika framework
+    public String toHtml(File doc) throws IOException {
+        checkSize(doc);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, doc.getName());
+        URL url = doc.toURI().toURL();
+        logger.info("Parsing url " + url);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        render(TikaInputStream.get(url, metadata), metadata, output, null);
+        return output.toString(ENCODING);
+    }
+
+    /**
+     * Parse the document straight into a content handler, without making
+     * any html. Good for picking just a few things out of a document.
+     *
+     * @return metadata of the document
+     */
+    public Metadata parse(File doc, ContentHandler handler) throws IOException {
+        checkSize(doc);
         ParseContext context = new ParseContext();
-        Detector detector = new DefaultDetector();
-        Parser parser = new AutoDetectParser(detector);
         context.set(Parser.class, parser);        
 
-        // set the input and output streams
         Metadata metadata = new Metadata();
         URL url = doc.toURI().toURL();
         InputStream input = TikaInputStream.get(url, metadata);        
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        LimitedContentHandler limited = limit(handler);
+        try {
+            logger.info("Parsing url " + url);
+            parser.parse(input, limited == null ? handler : limited, metadata, context);
+        } catch (SAXException se) {
+            if (! isTruncated(limited, url))
+                throw new IOException(se);
+        } catch (TikaException te) {
+            if (! isTruncated(limited, url))
+                throw new IOException(te);
+        } finally {
+            input.close();
+        }
+        return metadata;
+    }
+
+    /**
+     * Just the report fields, fast: the text goes to a {@link CaseNumberHandler}
+     * only (no html is made), and the parse is stopped as soon as the case
+     * number has been seen, or after maxChars of text. The modified date comes
+     * from the document's properties, which Tika reads before the text.
+     */
+    public DocumentFields extractFields(File doc, long maxChars) throws IOException {
+        checkSize(doc);
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);
+
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, doc.getName());
+        InputStream input = TikaInputStream.get(doc.toURI().toURL(), metadata);
+        final CaseNumberHandler caseNumber = new CaseNumberHandler();
+        LimitedContentHandler budget = new LimitedContentHandler(caseNumber, maxChars) {
+            public void endElement(String uri, String localName, String qName) throws SAXException {
+                super.endElement(uri, localName, qName);
+                if (caseNumber.isFound())
+                    stop();
+            }
+        };
+        try {
+            parser.parse(input, budget, metadata, context);
+        } catch (SAXException se) {
+            if (! budget.isTruncated())
+                throw new IOException(se);
+        } catch (TikaException te) {
+            if (! budget.isTruncated())
+                throw new IOException(te);
+        } finally {
+            input.close();
+        }
+        return new DocumentFields(caseNumber.getCaseNumber(), DocumentReport.getModified(metadata),
+            budget.getChars(), ! budget.isTruncated());
+    }
+
+    /**
+     * Parse the document and serialize it as html into the output stream,
+     * using the {@link #ENCODING} charset. The input stream is closed.
+     *
+     * @param tee content handler that gets the SAX events as well, or null
+     */
+    protected void render(InputStream input, Metadata metadata, OutputStream output, ContentHandler tee) throws IOException {
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);        
 
         // go!
-        String detectedCharset = null;
+        LimitedContentHandler limited = null;
         try {
             boolean prettyPrint = false; // don't add extra newlines
-            String encoding = null; // autodetect
-            TransformerHandler tHandler = getTransformerHandler(output, "html", encoding, prettyPrint);            
-            org.xml.sax.ContentHandler handler = 
+            TransformerHandler tHandler = getTransformerHandler(output, "html", ENCODING, prettyPrint);            
+            ContentHandler handler = 
                 new org.apache.tika.sax.ExpandedTitleContentHandler(tHandler);
-            logger.info("Parsing url " + url);
-            parser.parse(input, handler, metadata, context);
-            detectedCharset = tHandler.getTransformer().getOutputProperty(OutputKeys.ENCODING);
+            if (tee != null)
+                handler = new TeeContentHandler(handler, tee);
+            limited = limit(handler);
+            parser.parse(input, limited == null ? handler : limited, metadata, context);
 
         } catch (TransformerConfigurationException tce) {
             throw new IOException(tce);
         } catch (SAXException se) {
-            throw new IOException(se);
+            if (! isTruncated(limited, metadata.get(Metadata.RESOURCE_NAME_KEY)))
+                throw new IOException(se);
         } catch (TikaException te) {
-            throw new IOException(te);
+            if (! isTruncated(limited, metadata.get(Metadata.RESOURCE_NAME_KEY)))
+                throw new IOException(te);
         } finally {
             input.close();
             output.flush();
         }
+    }
 
-        if (detectedCharset == null) {
-            return output.toString(); // try our luck with the platforms default enc
-        } else {
-            return output.toString(detectedCharset);
-        }
+    /**
+     * The handler with the character limit on, or null if there's no limit.
+     */
+    private LimitedContentHandler limit(ContentHandler handler) {
+        long limit = maxChars;
+        return limit > 0 ? new LimitedContentHandler(handler, limit) : null;
+    }
+
+    /**
+     * Did the parse stop because the document hit the character limit?
+     * (Parsers sometimes wrap the handler's exception, so ask the handler.)
+     */
+    private static boolean isTruncated(LimitedContentHandler limited, Object doc) {
+        if (limited == null || ! limited.isTruncated())
+            return false;
+        logger.warn(String.format("o_O %s has more than %d characters of text, the rest was cut off", doc, limited.getChars()));
+        return true;
     }
 
     /**
@@ -107,11 +349,10 @@ public class DocToHtml {
      * @throws TransformerConfigurationException
      *         if the transformer can not be created
      */
-    private static TransformerHandler getTransformerHandler(
+    private TransformerHandler getTransformerHandler(
             OutputStream output, String method, String encoding, boolean prettyPrint)
             throws TransformerConfigurationException {
-        SAXTransformerFactory factory = (SAXTransformerFactory)
-                SAXTransformerFactory.newInstance();
+        SAXTransformerFactory factory = transformerFactories.get();
         TransformerHandler handler = factory.newTransformerHandler();
         handler.getTransformer().setOutputProperty(OutputKeys.METHOD, method);
         handler.getTransformer().setOutputProperty(OutputKeys.INDENT, prettyPrint ? "yes" : "no");
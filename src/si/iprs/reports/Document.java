@@ -14,6 +14,7 @@ public class Document {
     private boolean nascent = true;
 
     private Date documentDate;
+    private String type;
     private String caseNumber;
     private String zavezanec, opis;
     private String nadzornik;
@@ -27,6 +28,10 @@ public class Document {
         return src;
     }    
     
+    /**
+     * The merged (all changes accepted) .docx, or null if the merged
+     * document is only kept in memory.
+     */
     public File getMerged() {
         return merged;
     }
@@ -51,6 +56,71 @@ public class Document {
         this.mergedHtml = mergedHtml;
     }        
 
+    /**
+     * Last modified date of the document (from its metadata)
+     */
+    public Date getDocumentDate() {
+        return documentDate;
+    }
+
+    public void setDocumentDate(Date documentDate) {
+        this.documentDate = documentDate;
+    }
+
+    /**
+     * Type of document (zapisniki, odlocbe, ..), from its directory
+     */
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getCaseNumber() {
+        return caseNumber;
+    }
+
+    public void setCaseNumber(String caseNumber) {
+        this.caseNumber = caseNumber;
+    }
+
+    public String getNadzornik() {
+        return nadzornik;
+    }
+
+    public void setNadzornik(String nadzornik) {
+        this.nadzornik = nadzornik;
+    }
+
+    /**
+     * Zavezanec of the case the document is filed in (once it's linked, see CaseLinker)
+     */
+    public String getZavezanec() {
+        return zavezanec;
+    }
+
+    public void setZavezanec(String zavezanec) {
+        this.zavezanec = zavezanec;
+    }
+
+    public String getOpis() {
+        return opis;
+    }
+
+    public void setOpis(String opis) {
+        this.opis = opis;
+    }
+
+    public Date getDatumDodelitve() {
+        return datumDodelitve;
+    }
+
+    public void setDatumDodelitve(Date datumDodelitve) {
+        this.datumDodelitve = datumDodelitve;
+    }
+
 
 
 
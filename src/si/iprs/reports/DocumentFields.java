@@ -0,0 +1,55 @@
+package si.iprs.reports;
+
+import java.util.*;
+
+/**
+ * The report fields that come out of a document's content (the rest come
+ * from its file name and directory), see {@link DocToHtml#extractFields}.
+ *
+ * @author ikolar
+ */
+public class DocumentFields {
+    private final String caseNumber;
+    private final Date modified;
+    private final long chars;
+    private final boolean complete;
+
+    public DocumentFields(String caseNumber, Date modified, long chars, boolean complete) {
+        this.caseNumber = caseNumber;
+        this.modified = modified;
+        this.chars = chars;
+        this.complete = complete;
+    }
+
+    /**
+     * @return the case number, or null if it wasn't found
+     */
+    public String getCaseNumber() {
+        return caseNumber;
+    }
+
+    /**
+     * @return the last modified date, or null
+     */
+    public Date getModified() {
+        return modified;
+    }
+
+    /**
+     * Characters of text read before the parse was stopped.
+     */
+    public long getChars() {
+        return chars;
+    }
+
+    /**
+     * Was the whole document read?
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public String toString() {
+        return String.format("DocumentFields [caseNumber=%s, modified=%s, chars=%d, complete=%s]", caseNumber, modified, chars, complete);
+    }
+}
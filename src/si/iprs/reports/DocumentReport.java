@@ -0,0 +1,119 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import org.apache.tika.metadata.*;
+import org.apache.commons.logging.*;
+
+/**
+ * The report of converted documents: one tab separated line per document with
+ * nadzornik, document type, date, case number and the path of the html.
+ * When the html is in the {@link OutputStore} and not a loose file, there's
+ * a sixth column with the command that gets it out of the store (or use the
+ * store's export to write them all out to their paths).
+ *
+ * This used to be made by report.sh from the html files with a handful of sed
+ * pipelines per file. Now the pipeline picks the same fields up while it's
+ * converting the document anyway, and this class writes them out. The rules
+ * for each field are the ones from report.sh.
+ *
+ * @author ikolar
+ */
+public class DocumentReport {
+    public static final Log logger =
+        LogFactory.getLog(DocumentReport.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    // tika metadata keys for the last modified date, newest first
+    private static final String[] MODIFIED_KEYS = new String[] { "dcterms:modified", "modified", "Last-Modified" };
+
+    private DocumentReport() {
+    }
+
+    /**
+     * The nadzornik is the last word of the file name, e.g.
+     * "0610-12_2014 zapisnik_Eva_2.doc" is Eva's.
+     */
+    public static String nadzornikFromFilename(String name) {
+        name = name.replace("..", ".");
+        name = name.replaceFirst("[_-]?([0-9]+[._-]?)*\\.docx?(\\.html)?$", "");
+        name = name.replaceFirst(".*[_,-]\\s*", "");
+        return name;
+    }
+
+    /**
+     * The type of a document is the name of its directory, up to the first dash.
+     */
+    public static String typeFromDirectory(File dir) {
+        return dir.getName().replaceFirst("-.*", "");
+    }
+
+    /**
+     * The document's last modified date, from the Tika metadata.
+     *
+     * @return the date (without the time) or null if there isn't one
+     */
+    public static Date getModified(Metadata metadata) {
+        for (String key : MODIFIED_KEYS) {
+            String value = metadata.get(key);
+            if (value == null || value.length() < 10)
+                continue;
+            try {
+                return new SimpleDateFormat("yyyy-MM-dd").parse(value.substring(0, 10));
+            } catch (ParseException pe) {
+                logger.warn("o_O could not parse the modified date '" + value + "'");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the report, sorted by html path.
+     */
+    public static void write(Collection<Document> docs, File report) throws IOException {
+        write(docs, report, Collections.<File, String>emptyMap());
+    }
+
+    /**
+     * Same, with the command that gets each html that's in the output store
+     * out of it.
+     */
+    public static void write(Collection<Document> docs, File report, Map<File, String> stored) throws IOException {
+        SortedMap<String, String> lines = new TreeMap<String, String>();
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+        for (Document doc : docs) {
+            if (doc.getHtml() == null)
+                continue;
+            String path = doc.getHtml().getPath();
+            String command = stored.get(doc.getHtml());
+            lines.put(path, String.format("%s\t%s\t%s\t%s\t%s%s\n",
+                nullToEmpty(doc.getNadzornik()),
+                nullToEmpty(doc.getType()),
+                doc.getDocumentDate() == null ? "" : df.format(doc.getDocumentDate()),
+                nullToEmpty(doc.getCaseNumber()),
+                path,
+                command == null ? "" : "\t" + command));
+        }
+
+        File tmp = AtomicFiles.newTempFile(report);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                for (String line : lines.values())
+                    out.write(line);
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, report);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+        logger.info(String.format("Wrote %d documents to report %s", lines.size(), report));
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,35 @@
+package si.iprs.reports;
+
+import java.io.*;
+
+/**
+ * The document is bigger than we're willing to load (max_document_bytes).
+ * It's skipped, not failed: the rest of the run doesn't care.
+ *
+ * @author ikolar
+ */
+public class DocumentTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final File doc;
+    private final long size, limit;
+
+    public DocumentTooLargeException(File doc, long size, long limit) {
+        super(String.format("o_O %s is too large (%d bytes, the limit is %d), skipping it", doc, size, limit));
+        this.doc = doc;
+        this.size = size;
+        this.limit = limit;
+    }
+
+    public File getDocument() {
+        return doc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,95 @@
+package si.iprs.reports;
+
+import java.util.*;
+import org.xml.sax.*;
+import org.apache.tika.sax.ContentHandlerDecorator;
+
+/**
+ * Passes at most maxChars characters of text on to the decorated handler.
+ *
+ * When the limit is reached, the elements that are still open are closed,
+ * the document is ended, and parsing is stopped with a {@link LimitReachedException}.
+ * The decorated handler sees a well formed, truncated document, so the
+ * html made from it is still valid. Subclasses can {@link #stop()} earlier,
+ * when they've seen what they were after.
+ *
+ * @author ikolar
+ */
+public class LimitedContentHandler extends ContentHandlerDecorator {
+    /**
+     * Thrown to stop the parser once the limit is reached.
+     */
+    public static class LimitReachedException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitReachedException(long limit) {
+            super("o_O character limit of " + limit + " reached, document truncated");
+        }
+    }
+
+    private final long maxChars;
+    private long chars = 0;
+    private boolean truncated = false;
+    private final Deque<String[]> open = new ArrayDeque<String[]>();
+
+    public LimitedContentHandler(ContentHandler handler, long maxChars) {
+        super(handler);
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Was the document cut short?
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getChars() {
+        return chars;
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        open.push(new String[] { uri, localName, qName });
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        open.poll();
+        super.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        int allowed = allowed(length);
+        if (allowed > 0)
+            super.characters(ch, start, allowed);
+        if (allowed < length)
+            stop();
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        int allowed = allowed(length);
+        if (allowed > 0)
+            super.ignorableWhitespace(ch, start, allowed);
+        if (allowed < length)
+            stop();
+    }
+
+    private int allowed(int length) {
+        int allowed = (int) Math.min(length, Math.max(0, maxChars - chars));
+        chars += allowed;
+        return allowed;
+    }
+
+    /**
+     * End the document here and stop the parser.
+     */
+    protected void stop() throws SAXException {
+        truncated = true;
+        while (! open.isEmpty()) {
+            String[] e = open.pop();
+            super.endElement(e[0], e[1], e[2]);
+        }
+        super.endDocument();
+        throw new LimitReachedException(maxChars);
+    }
+}
@@ -0,0 +1,243 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+/**
+ * What came out of the case list the last time it was parsed, so the next
+ * run doesn't have to do it all again.
+ *
+ * The list .doc is remembered by size, mtime and content hash (like the
+ * sources in {@link ConversionManifest}); as long as it's the same, its
+ * tables are taken from here and Tika isn't started at all. Each table is
+ * remembered by a hash of its cells, together with the cases parsed out of
+ * it. The list only ever changes in the current year's table, so after an
+ * edit only that table's rows are parsed again.
+ *
+ * The nadzornik names of the cases depend on the nadzorniki files, so the
+ * cases are only good for as long as those don't change either (nor the
+ * way rows are parsed, see {@link #PARSER_VERSION}).
+ *
+ * The cache is a tab separated file: a "list" line (path, size, mtime,
+ * sha1, number of tables, nadzorniki stamp), then for each of the kept
+ * tables a "table" line (index, hash, rows, cases or -1 if it wasn't
+ * parsed), its rows (the cells) and its cases (as in the {@link CaseStore}).
+ *
+ * @author ikolar
+ */
+public class ListCache {
+    public static final Log logger =
+        LogFactory.getLog(ListCache.class);
+
+    public static final String FILENAME = "porocila.listcache";
+    private static final String ENCODING = "UTF-8";
+
+    // bump when CaseRowParser parses the same cells differently, so the cached cases are parsed again
+    private static final int PARSER_VERSION = 3;
+
+    private final File file;
+
+    private String listPath, listHash, stamp;
+    private long listSize = -1, listMtime = -1;
+    private int tableCount;
+    private final List<CaseListHandler.Table> tables = new ArrayList<CaseListHandler.Table>();
+    private final Map<String, List<Case>> cases = new HashMap<String, List<Case>>(); // table hash -> its cases
+
+    protected ListCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the cache. A missing (or garbled) cache is an empty one.
+     */
+    public static ListCache load(File file) throws IOException {
+        ListCache cache = new ListCache(file);
+        if (! file.exists())
+            return cache;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String[] list = split(in.readLine());
+            if (list == null || list.length != 7 || ! "list".equals(list[0])) {
+                logger.warn("o_O list cache " + file + " is garbled, ignoring it");
+                return cache;
+            }
+
+            List<CaseListHandler.Table> tables = new ArrayList<CaseListHandler.Table>();
+            Map<String, List<Case>> cases = new HashMap<String, List<Case>>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] t = split(line);
+                if (t.length != 5 || ! "table".equals(t[0])) {
+                    logger.warn("o_O list cache " + file + " is garbled, ignoring it");
+                    return cache;
+                }
+                CaseListHandler.Table table = new CaseListHandler.Table(Integer.parseInt(t[1]));
+                int rows = Integer.parseInt(t[3]), n = Integer.parseInt(t[4]);
+                for (int i = 0; i < rows; i++)
+                    table.getRows().add(split(readLine(in)));
+                List<Case> parsed = new ArrayList<Case>(Math.max(0, n));
+                for (int i = 0; i < n; i++) {
+                    Case c = CaseStore.fromLine(readLine(in));
+                    if (c == null) {
+                        logger.warn("o_O list cache " + file + " is garbled, ignoring it");
+                        return cache;
+                    }
+                    parsed.add(c);
+                }
+                tables.add(table);
+                if (n >= 0)
+                    cases.put(t[2], parsed);
+            }
+
+            cache.listPath = list[1];
+            cache.listSize = Long.parseLong(list[2]);
+            cache.listMtime = Long.parseLong(list[3]);
+            cache.listHash = list[4];
+            cache.tableCount = Integer.parseInt(list[5]);
+            cache.stamp = list[6];
+            cache.tables.addAll(tables);
+            cache.cases.putAll(cases);
+        } catch (NumberFormatException e) {
+            logger.warn("o_O list cache " + file + " is garbled, ignoring it");
+            return cache;
+        } catch (EOFException e) {
+            logger.warn("o_O list cache " + file + " is cut off, ignoring it");
+            return cache;
+        } finally {
+            in.close();
+        }
+        logger.info(String.format("Loaded %d tables from list cache %s", cache.tables.size(), file));
+        return cache;
+    }
+
+    /**
+     * The tables of the list, if it didn't change since they were cached.
+     *
+     * @param window how many of the last tables are needed
+     * @return the tables, oldest first, or null if the list has to be parsed again
+     */
+    public List<CaseListHandler.Table> getTables(File list, int window) throws IOException {
+        if (listPath == null || ! listPath.equals(list.getCanonicalPath()))
+            return null;
+        if (tables.size() < Math.min(window, tableCount))
+            return null; // cached for fewer years
+
+        if (list.length() != listSize || list.lastModified() != listMtime) {
+            // touched or copied over, but maybe not edited
+            if (! ConversionManifest.hash(list).equals(listHash))
+                return null;
+            listSize = list.length();
+            listMtime = list.lastModified();
+        }
+
+        List<CaseListHandler.Table> last = tables.subList(Math.max(0, tables.size() - window), tables.size());
+        return new ArrayList<CaseListHandler.Table>(last);
+    }
+
+    /**
+     * Number of tables in the whole list, when it was cached.
+     */
+    public int getTableCount() {
+        return tableCount;
+    }
+
+    /**
+     * The cases parsed out of a table with the same cells, if it's cached
+     * and the nadzorniki files are the same as then.
+     *
+     * @return the cases, or null if the table has to be parsed
+     */
+    public List<Case> getCases(CaseListHandler.Table table, String stamp) throws IOException {
+        if (! stamp.equals(this.stamp))
+            return null;
+        return cases.get(hash(table));
+    }
+
+    /**
+     * Remember the list's tables and the cases parsed out of them, and write
+     * the cache.
+     *
+     * @param cases the cases of each parsed table (the template isn't parsed)
+     */
+    public void save(File list, int tableCount, List<CaseListHandler.Table> tables, Map<CaseListHandler.Table, List<Case>> cases,
+            String stamp) throws IOException {
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                out.write(String.format("list\t%s\t%d\t%d\t%s\t%d\t%s\n", list.getCanonicalPath(), list.length(), list.lastModified(),
+                    ConversionManifest.hash(list), tableCount, stamp));
+                for (CaseListHandler.Table table : tables) {
+                    List<Case> parsed = cases.get(table);
+                    out.write(String.format("table\t%d\t%s\t%d\t%d\n", table.getIndex(), hash(table), table.getRows().size(),
+                        parsed == null ? -1 : parsed.size()));
+                    for (String[] row : table.getRows())
+                        out.write(join(row) + "\n");
+                    if (parsed == null)
+                        continue;
+                    for (Case c : parsed)
+                        out.write(CaseStore.toLine(CaseStore.key(c), c) + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+        logger.info(String.format("Wrote %d tables to list cache %s", tables.size(), file));
+    }
+
+    /**
+     * SHA-1 of a table's cells.
+     */
+    public static String hash(CaseListHandler.Table table) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        for (String[] row : table.getRows()) {
+            digest.update(join(row).getBytes(ENCODING));
+            digest.update((byte) '\n');
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * The mtimes of the nadzorniki files (and the parser version), the cached
+     * cases are only good with the same ones.
+     */
+    public static String stamp(File nadzorniki) {
+        StringBuilder stamp = new StringBuilder("v" + PARSER_VERSION + ",");
+        for (String suffix : new String[] { "", ".aliases", ".ignore" })
+            stamp.append(suffix.isEmpty() ? "" : ",").append(new File(nadzorniki.getPath() + suffix).lastModified());
+        return stamp.toString();
+    }
+
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null)
+            throw new EOFException("o_O list cache ends too soon");
+        return line;
+    }
+
+    // the cells are whitespace normalized (see CaseListHandler), so there are no tabs or newlines in them
+    private static String join(String[] cells) {
+        return String.join("\t", cells);
+    }
+
+    private static String[] split(String line) {
+        if (line == null)
+            return null;
+        return line.isEmpty() ? new String[0] : line.split("\t", -1);
+    }
+}
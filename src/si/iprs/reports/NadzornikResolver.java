@@ -0,0 +1,369 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Resolves the nadzornik names typed into the case list to their proper
+ * spelling.
+ *
+ * The proper names are the nice names from the nadzorniki file (the same
+ * file report2.sh uses), plus the targets of the nadzorniki.aliases file
+ * (raw name, proper name; for renames and names that aren't on the list
+ * anymore). A name from the aliases file is resolved as given. Anything else
+ * is matched to the closest proper name by edit distance, ignoring case,
+ * extra whitespace and diacritics (č/c, š/s, ž/z), as long as it's close
+ * enough and there's only one closest name. Names that can't be resolved
+ * are kept as they are.
+ *
+ * The proper names are kept in a BK-tree, so a lookup only compares the name
+ * with a few of them, and the results are memoised, so each distinct raw
+ * name is only looked up once.
+ *
+ * Names whose first word is in the nadzorniki.ignore file (the head of
+ * inspectors etc) are still resolved, but {@link #isIgnored(String)}.
+ *
+ * Without the nadzorniki file, {@link #builtIn()} still fixes the typos
+ * that used to be fixed in Case itself (and nothing else).
+ *
+ * @author ikolar
+ */
+public class NadzornikResolver {
+    public static final Log logger =
+        LogFactory.getLog(NadzornikResolver.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    // raw names that resolve to themselves
+    private static final Resolution UNRESOLVED = new Resolution(null, -1);
+
+    private final BkTree names = new BkTree();
+    private final Map<String, String> aliases = new HashMap<String, String>(); // folded raw -> proper
+    private final Set<String> ignored = new HashSet<String>(); // folded first names
+
+    private final ConcurrentMap<String, Resolution> memo = new ConcurrentHashMap<String, Resolution>();
+    private final ConcurrentMap<String, AtomicInteger> uses = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private static class Resolution {
+        final String name; // null if unresolved
+        final int distance;
+
+        Resolution(String name, int distance) {
+            this.name = name;
+            this.distance = distance;
+        }
+    }
+
+    // the corrections Case used to have built in, for when there's no nadzorniki file
+    private static final String[][] BUILT_IN_ALIASES = new String[][] {
+        { "Monika Benkovč", "Monika Benkovič" },
+        { "Klenem Mišič", "Klemen Mišič" },
+        { "Marko Logar", "Jure Logar" },
+        { "Marijan Činč", "Marijan Čonč" },
+        { "Tana Slak", "Tanja Slak" },
+        { "Blaš Pavšič", "Blaž Pavšič" }
+    };
+
+    /**
+     * A resolver that knows no names, and keeps every name as it is.
+     */
+    public NadzornikResolver() {
+    }
+
+    /**
+     * A resolver that only fixes the typos that used to be built into Case,
+     * exactly as they are (no edit distance matching, there are no proper
+     * names to match to).
+     */
+    public static NadzornikResolver builtIn() {
+        NadzornikResolver resolver = new NadzornikResolver();
+        for (String[] alias : BUILT_IN_ALIASES)
+            resolver.aliases.put(fold(alias[0]), alias[1]);
+        return resolver;
+    }
+
+    /**
+     * Load the nadzorniki file, and the .ignore and .aliases files next to
+     * it (if they're there). Lines with a # are comments.
+     */
+    public static NadzornikResolver load(File nadzorniki) throws IOException {
+        NadzornikResolver resolver = new NadzornikResolver();
+        for (String[] cols : readTsv(nadzorniki)) {
+            if (cols.length > 1 && ! cols[1].trim().isEmpty())
+                resolver.addName(cols[1].trim());
+        }
+
+        File ignore = new File(nadzorniki.getPath() + ".ignore");
+        if (ignore.exists()) {
+            for (String[] cols : readTsv(ignore))
+                resolver.ignored.add(fold(cols[0]));
+        }
+
+        File aliases = new File(nadzorniki.getPath() + ".aliases");
+        if (aliases.exists()) {
+            for (String[] cols : readTsv(aliases)) {
+                if (cols.length > 1)
+                    resolver.addAlias(cols[0].trim(), cols[1].trim());
+            }
+        }
+
+        logger.info(String.format("Loaded %d nadzorniki, %d aliases and %d ignored names from %s",
+            resolver.names.size(), resolver.aliases.size(), resolver.ignored.size(), nadzorniki));
+        return resolver;
+    }
+
+    public void addName(String name) {
+        names.add(fold(name), name);
+        memo.clear();
+    }
+
+    /**
+     * Always resolve the raw name to the proper one.
+     */
+    public void addAlias(String raw, String name) {
+        aliases.put(fold(raw), name);
+        addName(name);
+    }
+
+    /**
+     * The proper spelling of the name, or the name itself if it can't be resolved.
+     */
+    public String resolve(String raw) {
+        Resolution r = memo.get(raw);
+        if (r == null) {
+            r = lookup(raw);
+            memo.put(raw, r);
+        }
+
+        AtomicInteger n = uses.get(raw);
+        if (n == null) {
+            AtomicInteger fresh = new AtomicInteger();
+            n = uses.putIfAbsent(raw, fresh);
+            if (n == null)
+                n = fresh;
+        }
+        n.incrementAndGet();
+
+        return r.name == null ? raw : r.name;
+    }
+
+    private Resolution lookup(String raw) {
+        String folded = fold(raw);
+        if (folded.isEmpty())
+            return UNRESOLVED;
+
+        String alias = aliases.get(folded);
+        if (alias != null)
+            return new Resolution(alias, 0);
+
+        // a typo per 6 letters or so, but at least one and no more than 3
+        int maxDistance = Math.max(1, Math.min(3, folded.length() / 6));
+        List<String> best = new ArrayList<String>();
+        int bestDistance = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> match : names.search(folded, maxDistance).entrySet()) {
+            if (match.getValue() < bestDistance) {
+                best.clear();
+                bestDistance = match.getValue();
+            }
+            if (match.getValue() == bestDistance)
+                best.add(match.getKey());
+        }
+
+        if (best.isEmpty())
+            return UNRESOLVED;
+        if (best.size() > 1) {
+            logger.warn(String.format("o_O nadzornik '%s' is as close to %s, not resolving it", raw, best));
+            return UNRESOLVED;
+        }
+        return new Resolution(best.get(0), bestDistance);
+    }
+
+    /**
+     * Is the name (resolved or not) one of the proper names?
+     */
+    public boolean isKnown(String name) {
+        return ! names.search(fold(name), 0).isEmpty();
+    }
+
+    /**
+     * Is the nadzornik left out of the reports (by first name, like report2.sh)?
+     */
+    public boolean isIgnored(String name) {
+        String folded = fold(name);
+        int space = folded.indexOf(' ');
+        return ignored.contains(space == -1 ? folded : folded.substring(0, space));
+    }
+
+    /**
+     * The raw names that were resolved to something else, with what they
+     * were resolved to.
+     */
+    public SortedMap<String, String> getMappings() {
+        SortedMap<String, String> mappings = new TreeMap<String, String>();
+        for (Map.Entry<String, Resolution> e : memo.entrySet()) {
+            if (e.getValue().name != null && ! e.getValue().name.equals(e.getKey()))
+                mappings.put(e.getKey(), e.getValue().name);
+        }
+        return mappings;
+    }
+
+    /**
+     * Log what was resolved to what (and how many times), and the names that
+     * couldn't be resolved.
+     */
+    public void logMappings() {
+        for (Map.Entry<String, Resolution> e : new TreeMap<String, Resolution>(memo).entrySet()) {
+            String raw = e.getKey();
+            Resolution r = e.getValue();
+            AtomicInteger n = uses.get(raw);
+            int count = n == null ? 0 : n.get();
+            if (r.name == null) {
+                if (! isIgnored(raw))
+                    logger.warn(String.format("o_O unknown nadzornik '%s' (%d uses), add it to the nadzorniki or nadzorniki.aliases file", raw, count));
+            } else if (! r.name.equals(raw)) {
+                logger.info(String.format("Nadzornik '%s' resolved to '%s' (distance %d, %d uses)", raw, r.name, r.distance, count));
+            }
+        }
+    }
+
+    /**
+     * Lower case, no diacritics, single spaces.
+     */
+    protected static String fold(String s) {
+        String decomposed = Normalizer.normalize(s.trim().toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder out = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isWhitespace(c)) {
+                space = out.length() > 0;
+                continue;
+            }
+            if (space)
+                out.append(' ');
+            out.append(c);
+            space = false;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Levenshtein distance.
+     */
+    protected static int distance(String a, String b) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[b.length()];
+    }
+
+    /**
+     * BK-tree over the folded names: the children of a node are keyed by
+     * their distance to it, so by the triangle inequality a search only has
+     * to descend into children within maxDistance of the query's distance.
+     */
+    private static class BkTree {
+        private Node root;
+        private int size = 0;
+
+        private static class Node {
+            final String folded;
+            final Set<String> names = new TreeSet<String>(); // proper names that fold the same
+            final Map<Integer, Node> children = new HashMap<Integer, Node>();
+
+            Node(String folded) {
+                this.folded = folded;
+            }
+        }
+
+        synchronized void add(String folded, String name) {
+            if (root == null) {
+                root = new Node(folded);
+                root.names.add(name);
+                size++;
+                return;
+            }
+
+            Node node = root;
+            while (true) {
+                int d = distance(folded, node.folded);
+                if (d == 0) {
+                    if (node.names.add(name))
+                        size++;
+                    return;
+                }
+                Node child = node.children.get(d);
+                if (child == null) {
+                    child = new Node(folded);
+                    child.names.add(name);
+                    node.children.put(d, child);
+                    size++;
+                    return;
+                }
+                node = child;
+            }
+        }
+
+        /**
+         * @return the proper names within maxDistance, with their distances
+         */
+        synchronized Map<String, Integer> search(String folded, int maxDistance) {
+            Map<String, Integer> found = new TreeMap<String, Integer>();
+            if (root == null)
+                return found;
+
+            Deque<Node> todo = new ArrayDeque<Node>();
+            todo.push(root);
+            while (! todo.isEmpty()) {
+                Node node = todo.pop();
+                int d = distance(folded, node.folded);
+                if (d <= maxDistance) {
+                    for (String name : node.names)
+                        found.put(name, d);
+                }
+                for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                    if (Math.abs(child.getKey() - d) <= maxDistance)
+                        todo.push(child.getValue());
+                }
+            }
+            return found;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+
+    private static List<String[]> readTsv(File f) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), ENCODING));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains("#") || line.trim().isEmpty())
+                    continue;
+                rows.add(line.split("\t", -1));
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,633 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import org.apache.commons.logging.*;
+
+/**
+ * OutputStore - the converted outputs (html etc), compressed, in a few big
+ * segment files instead of tens of thousands of small loose files.
+ *
+ * An output is stored under its path relative to the destination dir (e.g.
+ * "zapisniki/a.doc.html"). The blobs are deflated and appended to the
+ * current segment (segment-00001.dat, ...; a new one is started once it's
+ * over the segment size), as records: magic, key, raw length, compressed
+ * length, data. Replacing or removing an output only changes the index, the
+ * old record is garbage until the store is compacted.
+ *
+ * The index is a sorted table of key, segment, offset and length, in a file
+ * that's memory mapped, so opening the store doesn't read it and a lookup is
+ * a binary search over the mapping. Changes since the last flush are kept in
+ * memory on top of it; {@link #flush()} writes a new index (index.N, the
+ * highest N wins, so a mapped index is never overwritten; Windows wouldn't
+ * let us). Outputs stored after the last flush are lost in a crash, so
+ * whoever relies on the store should check it has what they think it has.
+ *
+ * Not for more than one process at a time.
+ *
+ * Usage: java -cp .. OutputStore <store dir> <command> [args]<ul>
+ * <li>list [prefix] - keys and sizes</li>
+ * <li>get <key> - the output, to stdout</li>
+ * <li>export <dir> [prefix] - write the outputs out as loose files again</li>
+ * <li>compact</li></ul>
+ *
+ * @author ikolar
+ */
+public class OutputStore implements Closeable {
+    public static final Log logger =
+        LogFactory.getLog(OutputStore.class);
+
+    public static final String DIRNAME = "porocila.store";
+    private static final String ENCODING = "UTF-8";
+
+    private static final int RECORD_MAGIC = 0x504f5231; // POR1
+    private static final int INDEX_MAGIC = 0x504f4931;  // POI1
+    private static final int RECORD_HEADER = 4 + 2 + 4 + 4; // magic, key length, raw length, compressed length (+ key)
+
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    private final File dir;
+    private final long maxSegmentBytes;
+
+    private final Map<Integer, FileChannel> segments = new TreeMap<Integer, FileChannel>();
+    private int current = 0;
+
+    // the index as of the last flush, and what changed since (null = removed)
+    private volatile Index index;
+    private int indexGeneration = 0;
+    private final Map<String, Location> changes = new HashMap<String, Location>();
+
+    private long liveBytes = 0, totalBytes = 0;
+
+    /**
+     * Where a record is.
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp .. OutputStore <store dir> list [prefix] | get <key> | export <dir> [prefix] | compact");
+            System.exit(-1);
+        }
+
+        OutputStore store = OutputStore.open(new File(args[0]));
+        try {
+            String command = args[1];
+            if ("list".equals(command)) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, ENCODING));
+                for (String key : store.keys(args.length > 2 ? args[2] : null))
+                    out.print(key + "\t" + store.lookup(key).length + "\n");
+                out.flush();
+            } else if ("get".equals(command) && args.length > 2) {
+                byte[] data = store.get(args[2]);
+                if (data == null) {
+                    System.err.println("o_O no '" + args[2] + "' in the store");
+                    System.exit(1);
+                }
+                System.out.write(data);
+                System.out.flush();
+            } else if ("export".equals(command) && args.length > 2) {
+                int n = store.export(new File(args[2]), args.length > 3 ? args[3] : null);
+                logger.info(String.format("Exported %d outputs to %s", n, args[2]));
+            } else if ("compact".equals(command)) {
+                store.compact();
+            } else {
+                System.err.println("o_O unknown command '" + command + "'");
+                System.exit(-1);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    protected OutputStore(File dir, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    public static OutputStore open(File dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open the store in the directory (a new one if there isn't one yet).
+     */
+    public static OutputStore open(File dir, long maxSegmentBytes) throws IOException {
+        if (! dir.isDirectory() && ! dir.mkdirs())
+            throw new IOException("o_O could not create output store directory " + dir);
+
+        OutputStore store = new OutputStore(dir, maxSegmentBytes);
+        File[] files = dir.listFiles();
+        List<File> indexes = new ArrayList<File>();
+        for (File f : files == null ? new File[0] : files) {
+            String name = f.getName();
+            if (name.matches("segment-\\d+\\.dat")) {
+                int id = Integer.parseInt(name.substring(8, name.length() - 4));
+                FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                store.segments.put(id, channel);
+                store.current = Math.max(store.current, id);
+                store.totalBytes += channel.size();
+            } else if (name.matches("index\\.\\d+")) {
+                indexes.add(f);
+            }
+        }
+
+        // the newest index wins, the older ones are leftovers (still mapped when they were replaced)
+        File newest = null;
+        for (File f : indexes) {
+            int generation = Integer.parseInt(f.getName().substring(6));
+            if (newest == null || generation > store.indexGeneration) {
+                newest = f;
+                store.indexGeneration = generation;
+            }
+        }
+        for (File f : indexes) {
+            if (f != newest && ! f.delete())
+                logger.debug("Could not delete old index " + f + " yet");
+        }
+        store.index = newest == null ? Index.EMPTY : new Index(newest);
+
+        for (int i = 0; i < store.index.size(); i++)
+            store.liveBytes += store.index.location(i).length;
+        if (store.current == 0)
+            store.newSegment();
+
+        logger.info(String.format("Opened output store %s: %d outputs, %d MB in %d segments, %d MB of it garbage",
+            dir, store.index.size(), store.totalBytes >> 20, store.segments.size(), (store.totalBytes - store.liveBytes) >> 20));
+        return store;
+    }
+
+    private void newSegment() throws IOException {
+        current++;
+        File f = new File(dir, String.format("segment-%05d.dat", current));
+        segments.put(current, FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+    }
+
+    /**
+     * Store the output under the key (replacing what was there).
+     */
+    public void put(String key, byte[] data) throws IOException {
+        put(key, new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * Store a file under the key.
+     */
+    public void put(String key, File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            put(key, in, file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Store what's in the stream under the key. It's deflated straight into
+     * the segment, and the lengths in the record's header are filled in
+     * afterwards, so the output is never in memory as a whole.
+     *
+     * @param size about how big the output is (for starting a new segment)
+     */
+    private synchronized void put(String key, InputStream in, long size) throws IOException {
+        byte[] keyBytes = key.getBytes(ENCODING);
+        if (keyBytes.length > Short.MAX_VALUE)
+            throw new IOException("o_O key too long: " + key);
+
+        FileChannel segment = segments.get(current);
+        if (segment.size() > 0 && segment.size() + size > maxSegmentBytes) {
+            newSegment();
+            segment = segments.get(current);
+        }
+
+        long offset = segment.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + keyBytes.length);
+        header.putInt(RECORD_MAGIC);
+        header.putShort((short) keyBytes.length);
+        header.put(keyBytes);
+        int lengths = header.position();
+        header.putInt(0); // raw and compressed length, once we know them
+        header.putInt(0);
+        header.flip();
+        writeFully(segment, header, offset);
+
+        long raw = 0, compressed;
+        ChannelOutputStream data = new ChannelOutputStream(segment, offset + header.limit());
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(data, deflater, 64 * 1024);
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                raw += n;
+            }
+            out.finish();
+            compressed = data.position - (offset + header.limit());
+            if (raw > Integer.MAX_VALUE || compressed > Integer.MAX_VALUE)
+                throw new IOException("o_O output too large for the store: " + key);
+
+            ByteBuffer patch = ByteBuffer.allocate(8);
+            patch.putInt((int) raw);
+            patch.putInt((int) compressed);
+            patch.flip();
+            writeFully(segment, patch, offset + lengths);
+        } catch (IOException e) {
+            segment.truncate(offset); // nothing points at the half-written record
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        int length = (int) (data.position - offset);
+        Location old = lookup(key);
+        if (old != null)
+            liveBytes -= old.length;
+        changes.put(key, new Location(current, offset, length));
+        liveBytes += length;
+        totalBytes += length;
+    }
+
+    /**
+     * Writes to a channel from a position on (positional writes, so it
+     * doesn't matter where the channel's own position is).
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        long position;
+
+        ChannelOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(b, off, len), position);
+            position += len;
+        }
+    }
+
+    /**
+     * @return the output, or null if there's none under the key
+     */
+    public byte[] get(String key) throws IOException {
+        Location location;
+        FileChannel segment;
+        synchronized (this) {
+            location = lookup(key);
+            if (location == null)
+                return null;
+            segment = segments.get(location.segment);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        while (record.hasRemaining()) {
+            if (segment.read(record, location.offset + record.position()) < 0)
+                throw new EOFException("o_O record of '" + key + "' is cut off in segment " + location.segment);
+        }
+        record.flip();
+        return fromRecord(key, record);
+    }
+
+    public synchronized boolean contains(String key) {
+        return lookup(key) != null;
+    }
+
+    /**
+     * Forget the output under the key.
+     *
+     * @return false if there wasn't one
+     */
+    public synchronized boolean remove(String key) {
+        Location old = lookup(key);
+        if (old == null)
+            return false;
+        changes.put(key, null);
+        liveBytes -= old.length;
+        return true;
+    }
+
+    /**
+     * Forget the outputs that aren't in the keys.
+     *
+     * @return number of outputs removed
+     */
+    public synchronized int retainAll(Collection<String> keep) {
+        Set<String> kept = new HashSet<String>(keep);
+        int removed = 0;
+        for (String key : keys(null)) {
+            if (! kept.contains(key) && remove(key))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * The keys (starting with the prefix, if not null), sorted.
+     */
+    public synchronized SortedSet<String> keys(String prefix) {
+        SortedSet<String> keys = new TreeSet<String>();
+        for (int i = 0; i < index.size(); i++) {
+            String key = index.key(i);
+            if (prefix == null || key.startsWith(prefix))
+                keys.add(key);
+        }
+        for (Map.Entry<String, Location> e : changes.entrySet()) {
+            if (prefix != null && ! e.getKey().startsWith(prefix))
+                continue;
+            if (e.getValue() == null)
+                keys.remove(e.getKey());
+            else
+                keys.add(e.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Bytes of records nothing points to anymore.
+     */
+    public synchronized long getGarbageBytes() {
+        return totalBytes - liveBytes;
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    private Location lookup(String key) {
+        if (changes.containsKey(key))
+            return changes.get(key);
+        return index.find(key);
+    }
+
+    /**
+     * Write the outputs (starting with the prefix, if not null) into loose
+     * files under the directory, at their keys.
+     *
+     * @return number of files written
+     */
+    public int export(File destinationDir, String prefix) throws IOException {
+        int n = 0;
+        for (String key : keys(prefix)) {
+            byte[] data = get(key);
+            if (data == null)
+                continue;
+            File target = new File(destinationDir, key);
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (! parent.isDirectory() && ! parent.mkdirs())
+                throw new IOException("o_O could not create directory " + parent);
+
+            File tmp = AtomicFiles.newTempFile(target);
+            try {
+                OutputStream out = AtomicFiles.newOutputStream(tmp);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+                AtomicFiles.commit(tmp, target);
+            } finally {
+                AtomicFiles.discard(tmp);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Write the index, if anything changed since the last time.
+     */
+    public synchronized void flush() throws IOException {
+        if (changes.isEmpty())
+            return;
+
+        SortedMap<String, Location> all = new TreeMap<String, Location>();
+        for (int i = 0; i < index.size(); i++)
+            all.put(index.key(i), index.location(i));
+        for (Map.Entry<String, Location> e : changes.entrySet()) {
+            if (e.getValue() == null)
+                all.remove(e.getKey());
+            else
+                all.put(e.getKey(), e.getValue());
+        }
+        for (FileChannel segment : segments.values())
+            segment.force(false);
+        writeIndex(all);
+        changes.clear();
+    }
+
+    /**
+     * Copy the live records into new segments, and drop the old ones.
+     */
+    public synchronized void compact() throws IOException {
+        flush();
+        long before = totalBytes;
+        Map<Integer, FileChannel> old = new TreeMap<Integer, FileChannel>(segments);
+
+        newSegment();
+        SortedMap<String, Location> all = new TreeMap<String, Location>();
+        for (int i = 0; i < index.size(); i++) {
+            Location from = index.location(i);
+            ByteBuffer record = ByteBuffer.allocate(from.length);
+            while (record.hasRemaining()) {
+                if (old.get(from.segment).read(record, from.offset + record.position()) < 0)
+                    throw new EOFException("o_O record of '" + index.key(i) + "' is cut off in segment " + from.segment);
+            }
+            record.flip();
+
+            FileChannel segment = segments.get(current);
+            if (segment.size() > 0 && segment.size() + from.length > maxSegmentBytes) {
+                newSegment();
+                segment = segments.get(current);
+            }
+            long offset = segment.size();
+            writeFully(segment, record, offset);
+            all.put(index.key(i), new Location(current, offset, from.length));
+        }
+        for (int id = current; segments.containsKey(id); id--)
+            segments.get(id).force(false);
+        writeIndex(all);
+
+        // nothing points into the old segments anymore
+        for (Map.Entry<Integer, FileChannel> e : old.entrySet()) {
+            e.getValue().close();
+            segments.remove(e.getKey());
+            File f = new File(dir, String.format("segment-%05d.dat", e.getKey()));
+            if (! f.delete())
+                logger.warn("o_O could not delete old segment " + f);
+        }
+        totalBytes = liveBytes;
+        logger.info(String.format("Compacted output store %s from %d MB to %d MB", dir, before >> 20, totalBytes >> 20));
+    }
+
+    private void writeIndex(SortedMap<String, Location> all) throws IOException {
+        File target = new File(dir, "index." + (indexGeneration + 1));
+        File tmp = AtomicFiles.newTempFile(target);
+        try {
+            DataOutputStream out = new DataOutputStream(AtomicFiles.newOutputStream(tmp));
+            try {
+                List<byte[]> keys = new ArrayList<byte[]>(all.size());
+                for (String key : all.keySet())
+                    keys.add(key.getBytes(ENCODING));
+
+                // header, entry offsets, entries
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(all.size());
+                long offset = 8 + 8L * all.size();
+                for (byte[] key : keys) {
+                    out.writeLong(offset);
+                    offset += 2 + key.length + 4 + 8 + 4;
+                }
+                int i = 0;
+                for (Location location : all.values()) {
+                    byte[] key = keys.get(i++);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeInt(location.segment);
+                    out.writeLong(location.offset);
+                    out.writeInt(location.length);
+                }
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, target);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+
+        File previous = new File(dir, "index." + indexGeneration);
+        index = new Index(target);
+        indexGeneration++;
+        if (previous.exists() && ! previous.delete())
+            logger.debug("Could not delete old index " + previous + " yet, will do on the next open");
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        for (FileChannel segment : segments.values())
+            segment.close();
+        segments.clear();
+    }
+
+    private static byte[] fromRecord(String key, ByteBuffer record) throws IOException {
+        if (record.getInt() != RECORD_MAGIC)
+            throw new IOException("o_O the index points to garbage for '" + key + "'");
+        byte[] keyBytes = new byte[record.getShort()];
+        record.get(keyBytes);
+        if (! key.equals(new String(keyBytes, ENCODING)))
+            throw new IOException("o_O the index points to '" + new String(keyBytes, ENCODING) + "' for '" + key + "'");
+
+        byte[] data = new byte[record.getInt()];
+        byte[] compressed = new byte[record.getInt()];
+        record.get(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < data.length && ! inflater.finished())
+                n += inflater.inflate(data, n, data.length - n);
+            if (n != data.length)
+                throw new IOException("o_O record of '" + key + "' inflates to " + n + " bytes instead of " + data.length);
+        } catch (DataFormatException e) {
+            throw new IOException("o_O record of '" + key + "' is corrupt: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long offset) throws IOException {
+        while (data.hasRemaining())
+            offset += channel.write(data, offset);
+    }
+
+    /**
+     * The memory mapped index: magic, count, the offset of each entry, then
+     * the entries (key length, key, segment, offset, length), sorted by key.
+     */
+    private static class Index {
+        static final Index EMPTY = new Index();
+
+        private final MappedByteBuffer map;
+        private final int size;
+
+        private Index() {
+            this.map = null;
+            this.size = 0;
+        }
+
+        Index(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close(); // the mapping stays
+            }
+            if (map.capacity() < 8 || map.getInt(0) != INDEX_MAGIC)
+                throw new IOException("o_O " + file + " is not an output store index");
+            this.size = map.getInt(4);
+        }
+
+        int size() {
+            return size;
+        }
+
+        private int entry(int i) {
+            return (int) map.getLong(8 + 8 * i);
+        }
+
+        String key(int i) {
+            int at = entry(i);
+            byte[] key = new byte[map.getShort(at)];
+            for (int j = 0; j < key.length; j++)
+                key[j] = map.get(at + 2 + j);
+            try {
+                return new String(key, ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Location location(int i) {
+            int at = entry(i);
+            at += 2 + map.getShort(at);
+            return new Location(map.getInt(at), map.getLong(at + 4), map.getInt(at + 12));
+        }
+
+        /**
+         * Binary search.
+         */
+        Location find(String key) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = key(mid).compareTo(key);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return location(mid);
+            }
+            return null;
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.net.*;
 import java.text.*;
 import java.util.regex.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.time.YearMonth;
 import org.apache.commons.io.*;
 import org.apache.commons.io.filefilter.*;
 import org.apache.commons.logging.*;
@@ -53,12 +55,83 @@ public class ParseDocuments {
     private boolean debug = false;
 
 	private static final String[] documentDirs = new String[] { "zapisniki_dir", "neuvedbe_dir", "ustavitve_dir", "odlocbe_dir", "prekrski_dir", "destination_dir" };
+    // the documents in these end a case
+    private static final String[] CLOSING_DIRS = new String[] { "ustavitve_dir", "odlocbe_dir", "neuvedbe_dir" };
     private Map<String, File> sourceDirs = new HashMap<String, File>();
     private File destinationDir;
+    private File reportFile;
+    private File statsFile;
+    private File caseStoreFile, linksFile;
+    private File quarantineFile;
+    private Quarantine quarantine;
+    private File outputStoreDir;
+    private OutputStore outputStore;
+    private File searchIndexDir;
+    private SearchIndex searchIndex;
+    // what the linker found in the documents' texts, while watching
+    private final CaseLinker.TextCache textCache = new CaseLinker.TextCache();
+
+    // keep the .merged.docx files on disk (for debugging)
+    private boolean keepMerged = false;
+
+    // workers per pipeline stage
+    private int mergeThreads, htmlThreads, mergedHtmlThreads;
+
+    // memory limits per document, 0 for none
+    private long maxDocumentBytes, maxDocumentChars, mergeMemoryBytes;
+
+    // how much text the fast field extraction reads at most per document
+    private long extractChars;
+
+    // convert in this many child JVMs (0 for in process), each with this much
+    // memory, this long per conversion, restarted after this many conversions
+    private int workerProcesses, workerMemoryMb, workerMaxRequests;
+    private long conversionTimeoutSeconds;
+
+    // don't scan year/month directories before this (null for everything)
+    private YearMonth scanFrom;
+
+    // output directories that are known to exist
+    private final Set<File> outputDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    // how long a document has to be left alone before watch mode converts it
+    private long watchDebounceMillis = 2000;
+
+    // .doc and .docx, but not our own merged files or Word's lock files (~$name.docx)
+    private static final IOFileFilter SOURCE_FILTER = new IOFileFilter() {
+        public boolean accept(File file) {
+            return accept(file.getParentFile(), file.getName());
+        }
+
+        public boolean accept(File dir, String name) {
+            if (FilenameUtils.getBaseName(name).toLowerCase().endsWith(".merged"))
+                return false;
+            if (name.startsWith("~$"))
+                return false;
+
+            String ext = FilenameUtils.getExtension(name);
+            if (! ("doc".equalsIgnoreCase(ext) || "docx".equalsIgnoreCase(ext)) )
+                return false;
+
+            return true;
+        }
+    };
+
+    /**
+     * What a document needs done.
+     */
+    private static class Work {
+        boolean changed, merge, html, mergedHtml;
+    }
 
     public static void main(String[] args) throws Exception {
         ParseDocuments parser = new ParseDocuments();
-        parser.prepareDocuments();
+        if (args.length > 0 && "watch".equals(args[0]))
+            parser.watch();
+        else if (args.length > 0 && "extract".equals(args[0]))
+            parser.extractFields();
+        else
+            parser.prepareDocuments();
     }
 
     /**
@@ -86,6 +159,12 @@ public class ParseDocuments {
         in.close();
 
         this.debug = "1".equals(props.getProperty("debug"));
+        this.keepMerged = "1".equals(props.getProperty("keep_merged_docx"));
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        this.mergeThreads = getThreadsProperty(props, "merge_threads", cpus);
+        this.htmlThreads = getThreadsProperty(props, "html_threads", cpus);
+        this.mergedHtmlThreads = getThreadsProperty(props, "merged_html_threads", htmlThreads);
 
         // todo: document dirs (zapisniki, sklepi o neuvedbi, sklepi o ustavitvi, odločbe)
 	    logger.info("Checking whether the document directories are properly defined in the properties file ..");
@@ -115,6 +194,106 @@ public class ParseDocuments {
             throw new FileNotFoundException("o_O one or more document dirs are undefined and/or don't exist." + 
                 " Check the log for details.");
         }
+
+        // nadzornik, type, date, case no, path of each document (what report.sh used to make)
+        String report = props.getProperty("report_file");
+        this.reportFile = report == null ? new File(destinationDir, "report") : new File(report);
+
+        // per stage timings of the last run
+        String stats = props.getProperty("stats_file");
+        this.statsFile = stats == null ? new File(destinationDir, "porocila.stats") : new File(stats);
+
+        // the cases parsed by ParseInspectionsList, and which documents belong to which
+        String caseStore = props.getProperty("case_store");
+        this.caseStoreFile = caseStore == null ? new File(destinationDir, CaseStore.FILENAME) : new File(caseStore);
+        String links = props.getProperty("links_file");
+        this.linksFile = links == null ? new File(destinationDir, "porocila.links") : new File(links);
+
+        // skip huge sources, truncate huge texts, spill big merged documents to disk
+        this.maxDocumentBytes = getLongProperty(props, "max_document_bytes", 200L * 1024 * 1024);
+        this.maxDocumentChars = getLongProperty(props, "max_document_chars", 50L * 1000 * 1000);
+        this.mergeMemoryBytes = Math.min(Integer.MAX_VALUE, getLongProperty(props, "merge_memory_bytes", 16L * 1024 * 1024));
+        DocToHtml.getInstance().setMaxDocumentBytes(maxDocumentBytes);
+        DocToHtml.getInstance().setMaxChars(maxDocumentChars);
+        this.extractChars = getLongProperty(props, "extract_chars", 16 * 1024);
+
+        // documents that hang or crash a worker are quarantined
+        this.workerProcesses = (int) Math.min(64, getLongProperty(props, "worker_processes", 0));
+        this.workerMemoryMb = (int) Math.min(Integer.MAX_VALUE, getLongProperty(props, "worker_memory_mb", 1024));
+        this.conversionTimeoutSeconds = getLongProperty(props, "conversion_timeout_s", 300);
+        this.workerMaxRequests = (int) Math.min(Integer.MAX_VALUE, getLongProperty(props, "worker_max_requests", 200));
+        String quarantine = props.getProperty("quarantine_file");
+        this.quarantineFile = quarantine == null ? new File(destinationDir, Quarantine.FILENAME) : new File(quarantine);
+
+        // html outputs compressed into a few segment files instead of loose files
+        if ("1".equals(props.getProperty("output_store"))) {
+            String store = props.getProperty("output_store_dir");
+            this.outputStoreDir = store == null ? new File(destinationDir, OutputStore.DIRNAME) : new File(store);
+        }
+
+        // full text index of the converted documents, see SearchIndex
+        if ("1".equals(props.getProperty("search_index"))) {
+            String index = props.getProperty("search_index_dir");
+            this.searchIndexDir = index == null ? new File(destinationDir, SearchIndex.DIRNAME) : new File(index);
+        }
+
+        // 2014 or 2014-08, like the year and start_mon in report2.sh
+        String scanFrom = props.getProperty("scan_from");
+        if (scanFrom != null && ! scanFrom.trim().isEmpty()) {
+            try {
+                String from = scanFrom.trim();
+                this.scanFrom = YearMonth.parse(from.length() == 4 ? from + "-01" : from);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("o_O invalid scan_from property '%s'. Should be yyyy or yyyy-mm. Scanning everything.", scanFrom));
+            }
+        }
+
+        String debounce = props.getProperty("watch_debounce_ms");
+        if (debounce != null) {
+            try {
+                this.watchDebounceMillis = Long.parseLong(debounce.trim());
+            } catch (NumberFormatException nfe) {
+                logger.warn(String.format("o_O invalid watch_debounce_ms property '%s'. Defaulting to %d.", debounce, watchDebounceMillis));
+            }
+        }
+    }
+
+    /**
+     * Number of workers for a pipeline stage, an int in [1,64].
+     */
+    private int getThreadsProperty(Properties props, String name, int defaultThreads) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultThreads;
+
+        try {
+            int threads = Integer.parseInt(value.trim());
+            if (threads >= 1 && threads <= 64)
+                return threads;
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        logger.warn(String.format("o_O invalid %s property '%s'. Should be an int in [1,64]. Defaulting to %d.", name, value, defaultThreads));
+        return defaultThreads;
+    }
+
+    /**
+     * A size or a count, a long >= 0 (0 meaning no limit).
+     */
+    private long getLongProperty(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            long n = Long.parseLong(value.trim());
+            if (n >= 0)
+                return n;
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        logger.warn(String.format("o_O invalid %s property '%s'. Should be an int >= 0. Defaulting to %d.", name, value, defaultValue));
+        return defaultValue;
     }
 
     /**
@@ -135,86 +314,605 @@ public class ParseDocuments {
     public List<Document> prepareDocuments() throws IOException {
         List<Document> allDocs = new ArrayList<Document>();
 
-        for (Map.Entry<String, File> source : sourceDirs.entrySet()) {
-            File sourceDir = source.getValue();
-            allDocs.addAll(prepareDocuments(sourceDir, destinationDir));
+        ConversionManifest manifest = ConversionManifest.load(destinationDir);
+        ConversionPipeline pipeline = newPipeline(manifest);
+        PipelineStats stats = pipeline.getStats();
+        stats.register();
+        try {
+            allDocs.addAll(prepareDocuments(sourceDirs.values(), destinationDir, pipeline, manifest));
 
+            // a few failed documents shouldn't keep the rest out of the report
+            IOException failed = null;
+            try {
+                pipeline.await();
+            } catch (IOException e) {
+                failed = e;
+            }
+            writeReport(allDocs, stats);
+            linkCases(allDocs);
+            if (failed != null)
+                throw failed;
+        } finally {
+            pipeline.shutdown();
+            manifest.save();
+            getQuarantine().save();
+            saveOutputStore(manifest);
+            closeOutputStore();
+            saveSearchIndex(manifest);
+            closeSearchIndex();
+            stats.unregister();
+            stats.log();
+            writeStats(stats);
         }
 
         return allDocs;
     }    
-    
+
+    /**
+     * Convert everything that needs converting, then keep watching the source
+     * directories and convert documents as soon as they're saved, rewriting
+     * the report after each batch. Runs until interrupted.
+     */
+    public void watch() throws IOException, InterruptedException {
+        // start watching before the first scan, so nothing saved in the meantime is missed
+        SourceWatcher watcher = new SourceWatcher(sourceDirs.values(), SOURCE_FILTER, watchDebounceMillis);
+        try {
+            Map<File, Document> docs = new LinkedHashMap<File, Document>();
+            try {
+                for (Document doc : prepareDocuments())
+                    docs.put(doc.getSrc().getAbsoluteFile(), doc);
+            } catch (IOException e) {
+                logger.error("o_O the first run had failures, watching anyway: " + e.getMessage());
+            }
+
+            ConversionManifest manifest = ConversionManifest.load(destinationDir);
+            ConversionPipeline pipeline = newPipeline(manifest);
+            PipelineStats stats = pipeline.getStats();
+            stats.register();
+            logger.info(String.format("Watching %d source directories for changes ..", sourceDirs.size()));
+            try {
+                while (true) {
+                    SourceWatcher.Batch batch = watcher.take();
+
+                    if (batch.isOverflow()) {
+                        docs.clear();
+                        textCache.clear();
+                        for (Document doc : prepareDocuments(sourceDirs.values(), destinationDir, pipeline, manifest))
+                            docs.put(doc.getSrc().getAbsoluteFile(), doc);
+                    }
+
+                    for (File deleted : batch.getDeleted()) {
+                        if (deleted.exists())
+                            continue; // came back since (the watcher waited for that, but still)
+                        String prefix = deleted.getAbsolutePath() + File.separator;
+                        Iterator<File> it = docs.keySet().iterator();
+                        while (it.hasNext()) {
+                            File src = it.next();
+                            if (src.equals(deleted.getAbsoluteFile()) || src.getPath().startsWith(prefix))
+                                it.remove();
+                        }
+                        manifest.remove(deleted);
+                        textCache.forget(deleted);
+                    }
+
+                    int queued = 0;
+                    for (Map.Entry<File, File> changed : batch.getChanged().entrySet()) {
+                        File src = changed.getKey();
+                        Document doc = newDocument(src, changed.getValue(), destinationDir);
+                        docs.put(src.getAbsoluteFile(), doc);
+                        textCache.forget(src);
+                        if (submit(doc, needs(doc, manifest), pipeline, manifest))
+                            queued++;
+                    }
+                    logger.info(String.format("%d documents changed, %d deleted; converting %d",
+                        batch.getChanged().size(), batch.getDeleted().size(), queued));
+
+                    try {
+                        pipeline.await();
+                    } catch (IOException e) {
+                        // logged by the pipeline; the documents are retried when they're saved again
+                    }
+                    writeReport(docs.values(), stats);
+                    linkCases(docs.values());
+                    manifest.save();
+                    getQuarantine().save();
+                    saveOutputStore(manifest);
+                    saveSearchIndex(manifest);
+                    writeStats(stats);
+                }
+            } finally {
+                pipeline.shutdown();
+                manifest.save();
+                getQuarantine().save();
+                saveOutputStore(manifest);
+                closeOutputStore();
+                saveSearchIndex(manifest);
+                closeSearchIndex();
+                stats.unregister();
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Re-index without converting anything: get the report fields of every
+     * source straight from the source (see {@link DocToHtml#extractFields}),
+     * and write the report and the links. Much faster than converting, since
+     * most documents have their case number in the first few lines.
+     */
+    public List<Document> extractFields() throws IOException, InterruptedException {
+        final PipelineStats stats = new PipelineStats();
+        final DocToHtml converter = DocToHtml.getInstance();
+
+        List<Document> docs = new ArrayList<Document>();
+        for (SourceScanner.Result scanned : new SourceScanner(SOURCE_FILTER, scanFrom).scan(sourceDirs.values())) {
+            stats.record(PipelineStats.SCAN, scanned.getSourceDir().getPath(), scanned.getNanos(), 0, 0, false);
+            for (File src : scanned.getSources())
+                docs.add(newDocument(src, scanned.getSourceDir(), destinationDir));
+        }
+
+        logger.info(String.format("Extracting the fields of %d documents with %d threads, reading at most %d characters of each ..",
+            docs.size(), htmlThreads, extractChars));
+        ExecutorService executor = Executors.newFixedThreadPool(htmlThreads);
+        for (final Document doc : docs) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        DocumentFields fields = converter.extractFields(doc.getSrc(), extractChars);
+                        doc.setCaseNumber(fields.getCaseNumber());
+                        doc.setDocumentDate(fields.getModified());
+                        stats.record(PipelineStats.EXTRACT, doc.getSrc().getPath(), System.nanoTime() - start,
+                            doc.getSrc().length(), fields.getChars(), false);
+                    } catch (IOException e) {
+                        stats.record(PipelineStats.EXTRACT, doc.getSrc().getPath(), System.nanoTime() - start,
+                            doc.getSrc().length(), 0, true);
+                        logger.error("o_O could not extract the fields of " + doc.getSrc() + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        try {
+            writeReport(docs, stats);
+            linkCases(docs);
+        } finally {
+            closeOutputStore();
+        }
+        stats.log();
+        writeStats(stats);
+        return docs;
+    }
+
+    private void writeReport(Collection<Document> docs, PipelineStats stats) throws IOException {
+        long start = System.nanoTime();
+        DocumentReport.write(docs, reportFile, storedHtml(docs));
+        stats.record(PipelineStats.REPORT, reportFile.getPath(), System.nanoTime() - start, 0, reportFile.length(), false);
+    }
+
     /**
+     * Link the documents to the cases in the case store (if there is one),
+     * and write down what was and wasn't linked. Documents without a case
+     * number on the list are matched by their text (see {@link CaseLinker}).
      *
+     * A case with a linked ustavitev, odločba or neuvedba is closed on the
+     * date of the first one (the list doesn't say when cases are closed).
+     */
+    private void linkCases(Collection<Document> docs) throws IOException {
+        if (! caseStoreFile.exists()) {
+            logger.info("No case store at " + caseStoreFile + " (run ParseInspectionsList first), not linking documents to cases");
+            return;
+        }
+
+        CaseStore store = CaseStore.open(caseStoreFile);
+        try {
+            CaseLinker linker = new CaseLinker(store.findAssigned(null, null));
+            linker.setTextCache(textCache);
+            linker.link(docs, new CaseLinker.TextSource() {
+                public String getText(Document doc) throws IOException {
+                    return readText(doc);
+                }
+            });
+            linker.write(linksFile);
+            closeCases(linker, docs, store);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Close the cases that have a closing document linked to them.
+     */
+    private void closeCases(CaseLinker linker, Collection<Document> docs, CaseStore store) throws IOException {
+        Set<String> closing = new HashSet<String>();
+        for (String d : CLOSING_DIRS) {
+            if (sourceDirs.containsKey(d))
+                closing.add(DocumentReport.typeFromDirectory(sourceDirs.get(d)));
+        }
+
+        int closed = 0;
+        for (Document doc : docs) {
+            Case c = linker.getCase(doc);
+            if (c == null || doc.getDocumentDate() == null || ! closing.contains(doc.getType()))
+                continue;
+            if (store.setClosed(c, doc.getDocumentDate()))
+                closed++;
+        }
+        if (closed > 0)
+            logger.info(String.format("Closed %d cases by their ustavitve, odločbe and neuvedbe", closed));
+    }
+
+    private void writeStats(PipelineStats stats) {
+        try {
+            stats.write(statsFile);
+        } catch (IOException e) {
+            logger.warn("o_O could not write pipeline stats to " + statsFile, e);
+        }
+    }
+    
+    /**
+     * Prepare documents from a single source directory for parsing.
      */  
     public List<Document> prepareDocuments(File sourceDir, File destinationDir) throws IOException {
-        logger.info(String.format("Preparing docs, sourceDir = %s, destinationDir = %s", sourceDir, destinationDir)); 
+        ConversionManifest manifest = ConversionManifest.load(destinationDir);
+        ConversionPipeline pipeline = newPipeline(manifest);
+        try {
+            List<Document> docs = prepareDocuments(sourceDir, destinationDir, pipeline, manifest);
+            pipeline.await();
+            return docs;
+        } finally {
+            pipeline.shutdown();
+            manifest.save();
+            getQuarantine().save();
+            saveOutputStore(manifest);
+            closeOutputStore();
+            saveSearchIndex(manifest);
+            closeSearchIndex();
+        }
+    }
 
-        // find the source files
-        Collection<File> sources = FileUtils.listFiles(
-            sourceDir,
-            new IOFileFilter() {
-                public boolean accept(File file) {
-                    return accept(file.getParentFile(), file.getName());
-                }
+    private Quarantine getQuarantine() throws IOException {
+        if (quarantine == null)
+            quarantine = Quarantine.load(quarantineFile);
+        return quarantine;
+    }
+
+    /**
+     * The output store, or null if the outputs are kept as loose files.
+     */
+    private OutputStore getOutputStore() throws IOException {
+        if (outputStore == null && outputStoreDir != null)
+            outputStore = OutputStore.open(outputStoreDir);
+        return outputStore;
+    }
+
+    /**
+     * Move the document's html outputs into the store. The merged docx (if
+     * it's kept) stays a loose file, Word has to open it.
+     */
+    private void storeOutputs(Document doc, OutputStore store) throws IOException {
+        for (File output : new File[] { doc.getHtml(), doc.getMergedHtml() }) {
+            String key = storeKey(output);
+            if (key == null || ! output.exists())
+                continue;
+            store.put(key, output);
+            if (! output.delete())
+                logger.warn("o_O could not delete " + output + " after storing it");
+        }
+    }
+
+    /**
+     * Drop the stored outputs of sources that are gone, write the store's
+     * index, and compact the store once it's more garbage than outputs.
+     */
+    private void saveOutputStore(ConversionManifest manifest) throws IOException {
+        if (outputStore == null)
+            return;
+
+        Set<String> keep = new HashSet<String>();
+        for (File output : manifest.getOutputs()) {
+            String key = storeKey(output);
+            if (key != null)
+                keep.add(key);
+        }
+        int removed = outputStore.retainAll(keep);
+        if (removed > 0)
+            logger.info(String.format("Removed %d stored outputs of deleted sources", removed));
+
+        outputStore.flush();
+        if (outputStore.getGarbageBytes() > outputStore.getLiveBytes())
+            outputStore.compact();
+    }
+
+    private void closeOutputStore() throws IOException {
+        if (outputStore != null) {
+            outputStore.close();
+            outputStore = null;
+        }
+    }
+
+    /**
+     * For the documents whose html is in the output store (not a loose file),
+     * the command that gets it out, for the report.
+     */
+    private Map<File, String> storedHtml(Collection<Document> docs) throws IOException {
+        Map<File, String> stored = new HashMap<File, String>();
+        if (outputStoreDir == null)
+            return stored;
+
+        OutputStore store = getOutputStore();
+        int n = 0;
+        for (Document doc : docs) {
+            File html = doc.getHtml();
+            String key = storeKey(html);
+            if (html == null || html.exists() || key == null || ! store.contains(key))
+                continue;
+            stored.put(html, String.format("run.sh si.iprs.reports.OutputStore \"%s\" get \"%s\"", outputStoreDir.getPath(), key));
+            n++;
+        }
+        if (n > 0)
+            logger.info(String.format("The html of %d documents in the report is in the output store %s, " +
+                "see the last column of the report (or: run.sh si.iprs.reports.OutputStore \"%s\" export <dir>)", n, outputStoreDir, outputStoreDir));
+        return stored;
+    }
+
+    /**
+     * Key of an output in the store: its path under the destination dir,
+     * with / separators. Null if it's not under the destination dir.
+     */
+    private String storeKey(File output) throws IOException {
+        if (output == null)
+            return null;
+        String dir = destinationDir.getCanonicalPath() + File.separator;
+        String path = output.getCanonicalPath();
+        if (! path.startsWith(dir))
+            return null;
+        return path.substring(dir.length()).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * The search index, or null if there isn't one.
+     */
+    private SearchIndex getSearchIndex() throws IOException {
+        if (searchIndex == null && searchIndexDir != null)
+            searchIndex = SearchIndex.open(searchIndexDir);
+        return searchIndex;
+    }
+
+    /**
+     * Index the text of the document's merged html (all the changes
+     * accepted, like the document reads now), or of its html if there's no
+     * merged one.
+     */
+    private void indexDocument(Document doc, SearchIndex index) throws IOException {
+        String text = readText(doc);
+        if (text == null) {
+            logger.warn("o_O no html of " + doc.getSrc() + " to index");
+            return;
+        }
+        index.put(doc, text);
+    }
+
+    /**
+     * The text of the document's merged html, or of its html if there's no
+     * merged one. Null if there's neither.
+     */
+    private String readText(Document doc) throws IOException {
+        byte[] html = readOutput(doc.getMergedHtml());
+        if (html == null)
+            html = readOutput(doc.getHtml());
+        return html == null ? null : Jsoup.parse(new String(html, "UTF-8")).text();
+    }
+
+    /**
+     * Drop the sources that are gone from the search index and write it.
+     */
+    private void saveSearchIndex(ConversionManifest manifest) throws IOException {
+        if (searchIndex == null)
+            return;
+
+        int removed = searchIndex.retainAll(manifest.getSources());
+        if (removed > 0)
+            logger.info(String.format("Removed %d deleted sources from the search index", removed));
+        searchIndex.flush();
+    }
+
+    private void closeSearchIndex() throws IOException {
+        if (searchIndex != null) {
+            searchIndex.close();
+            searchIndex = null;
+        }
+    }
+
+    /**
+     * An output's content, from the loose file or the store. Null if it's
+     * in neither.
+     */
+    private byte[] readOutput(File output) throws IOException {
+        if (output == null)
+            return null;
+        if (output.exists())
+            return FileUtils.readFileToByteArray(output);
+        OutputStore store = getOutputStore();
+        String key = storeKey(output);
+        return store == null || key == null ? null : store.get(key);
+    }
 
-                public boolean accept(File dir, String name) {
-                    if (FilenameUtils.getBaseName(name).toLowerCase().endsWith(".merged"))
-                        return false;
-                    
-                    String ext = FilenameUtils.getExtension(name);
-                    if (! ("doc".equalsIgnoreCase(ext) || "docx".equalsIgnoreCase(ext)) )
-                        return false;
+    /**
+     * Is the output there, as a loose file or in the store?
+     */
+    private boolean hasOutput(File output) throws IOException {
+        if (output.exists())
+            return true;
+        OutputStore store = getOutputStore();
+        String key = storeKey(output);
+        return store != null && key != null && store.contains(key);
+    }
 
-                    return true;
+    /**
+     * A pipeline that records converted documents in the manifest, and
+     * quarantines the ones that hang or crash a worker process.
+     */
+    protected ConversionPipeline newPipeline(final ConversionManifest manifest) throws IOException {
+        logger.info(String.format("Pipeline workers: %d merge, %d html, %d merged html", mergeThreads, htmlThreads, mergedHtmlThreads));
+        ConversionPipeline pipeline = new ConversionPipeline(mergeThreads, htmlThreads, mergedHtmlThreads);
+        pipeline.setMergeMemoryBytes((int) mergeMemoryBytes);
+        if (workerProcesses > 0) {
+            logger.info(String.format("Converting in %d worker processes, %d MB and %d s per conversion each",
+                workerProcesses, workerMemoryMb, conversionTimeoutSeconds));
+            pipeline.setWorkers(new WorkerPool(workerProcesses, workerMemoryMb, conversionTimeoutSeconds * 1000, workerMaxRequests));
+        }
+        final Quarantine quarantine = getQuarantine();
+        final OutputStore store = getOutputStore();
+        final SearchIndex index = getSearchIndex();
+        pipeline.setListener(new ConversionPipeline.Listener() {
+            public void converted(Document doc) {
+                // before the outputs go into the store, while they're still loose files
+                if (index != null) {
+                    try {
+                        indexDocument(doc, index);
+                    } catch (IOException e) {
+                        logger.warn("o_O could not add " + doc.getSrc() + " to the search index", e);
+                    }
                 }
-            },
-            TrueFileFilter.INSTANCE
-        );
+                if (store != null) {
+                    try {
+                        storeOutputs(doc, store);
+                    } catch (IOException e) {
+                        logger.warn("o_O could not move the outputs of " + doc.getSrc() + " into the output store, leaving them loose", e);
+                    }
+                }
+                try {
+                    manifest.update(doc);
+                } catch (IOException e) {
+                    logger.warn("o_O could not add " + doc.getSrc() + " to the manifest, it will be reconverted next time", e);
+                }
+            }
+
+            public void failed(Document doc, Exception e) {
+                // keep the old manifest entry, the source will be retried next time
+                if (e instanceof WorkerException)
+                    quarantine.add(doc.getSrc(), e.getMessage());
+            }
+        });
+        return pipeline;
+    }
+
+    /**
+     * Find the documents in sourceDir and queue whatever they're missing
+     * into the pipeline. The documents are ready once the pipeline is awaited.
+     *
+     * Documents whose source changed since the last run (according to the
+     * manifest) are reconverted from scratch.
+     */  
+    protected List<Document> prepareDocuments(File sourceDir, File destinationDir, ConversionPipeline pipeline, ConversionManifest manifest) throws IOException {
+        return prepareDocuments(Collections.singletonList(sourceDir), destinationDir, pipeline, manifest);
+    }
+
+    /**
+     * Same, for several source directories, which are scanned at the same time.
+     */
+    protected List<Document> prepareDocuments(Collection<File> sourceDirs, File destinationDir, ConversionPipeline pipeline, ConversionManifest manifest) throws IOException {
+        List<Document> docs = new ArrayList<Document>();
+        SourceScanner scanner = new SourceScanner(SOURCE_FILTER, scanFrom);
+        for (SourceScanner.Result scanned : scanner.scan(sourceDirs)) {
+            pipeline.getStats().record(PipelineStats.SCAN, scanned.getSourceDir().getPath(), scanned.getNanos(), 0, 0, false);
+            docs.addAll(prepareDocuments(scanned, destinationDir, pipeline, manifest));
+        }
+        return docs;
+    }
+
+    private List<Document> prepareDocuments(SourceScanner.Result scanned, File destinationDir, ConversionPipeline pipeline, ConversionManifest manifest) throws IOException {
+        File sourceDir = scanned.getSourceDir();
+        List<File> sources = scanned.getSources();
+        logger.info(String.format("Preparing docs, sourceDir = %s, destinationDir = %s", sourceDir, destinationDir)); 
+
+        int orphans = manifest.removeOrphans(sourceDir, sources, scanned.getSkipped());
+        if (orphans > 0)
+            logger.info(String.format("Removed outputs of %d deleted sources", orphans));
 
         // see who needs what        
         List<Document> docs = new ArrayList<Document>();
-        List<Document> toMerge = new ArrayList<Document>();
-        List<Document> toHtml = new ArrayList<Document>();
-        List<Document> toMergedHtml = new ArrayList<Document>();
+        int toMerge = 0, toHtml = 0, toMergedHtml = 0, changed = 0;
         for (File src : sources) {
-            File outdir = new File(destinationDir, sourceDir.getName());
-            String base = src.getName();
-            
-            Document doc = new Document(src);
-            doc.setMerged(new File(outdir, base + ".merged.docx"));
-            doc.setHtml(new File(outdir, base + ".html"));
-            doc.setMergedHtml(new File(outdir, base + ".merged.html"));
+            Document doc = newDocument(src, sourceDir, destinationDir);
             docs.add(doc);
 
-            if (! doc.getMerged().exists())
-                toMerge.add(doc);
-            if (! doc.getHtml().exists())
-                toHtml.add(doc);
-            if (! doc.getMergedHtml().exists())
-                toMergedHtml.add(doc);
-            
-            FileUtils.forceMkdir(doc.getMerged().getParentFile());
+            Work work = needs(doc, manifest);
+            if (work.changed) changed++;
+            if (work.merge) toMerge++;
+            if (work.html) toHtml++;
+            if (work.mergedHtml) toMergedHtml++;
+            submit(doc, work, pipeline, manifest);
         }
-        logger.info(String.format("Need to prepare %d merges, %d htmls, %d mergedHtmls", toMerge.size(), toHtml.size(), toMergedHtml.size()));
+        logger.info(String.format("%d changed sources. Need to prepare %d merges, %d htmls, %d mergedHtmls", changed, toMerge, toHtml, toMergedHtml));
 
-        AcceptAllChanges acceptor = new AcceptAllChanges();
-        for (Document doc : toMerge) {
-            acceptor.acceptAllChanges(doc.getSrc(), doc.getMerged(), false);
-        }
+        return docs;
+    }
+
+    /**
+     * A document for the source, with its outputs in destinationDir.
+     */
+    private Document newDocument(File src, File sourceDir, File destinationDir) {
+        File outdir = new File(destinationDir, sourceDir.getName());
+        String base = src.getName();
+
+        Document doc = new Document(src);
+        if (keepMerged)
+            doc.setMerged(new File(outdir, base + ".merged.docx"));
+        doc.setHtml(new File(outdir, base + ".html"));
+        doc.setMergedHtml(new File(outdir, base + ".merged.html"));
+        doc.setNadzornik(DocumentReport.nadzornikFromFilename(base));
+        doc.setType(DocumentReport.typeFromDirectory(outdir));
+        return doc;
+    }
 
-        for (Document doc : toHtml) {
-            DocToHtml.callTika(doc.getSrc(), doc.getHtml());
+    /**
+     * See what the document is missing. Documents whose source changed since
+     * the last run (according to the manifest) need everything again.
+     */
+    private Work needs(Document doc, ConversionManifest manifest) throws IOException {
+        Work work = new Work();
+        // the case number and date come from the html conversion
+        work.changed = manifest.isChanged(doc);
+        boolean restored = ! work.changed && manifest.restore(doc);
+        work.html = work.changed || ! restored || ! hasOutput(doc.getHtml());
+        work.mergedHtml = work.changed || ! hasOutput(doc.getMergedHtml());
+        // without revisions the merged html is linked to the html, which has to be a loose file for that
+        if (work.mergedHtml && ! doc.getHtml().exists())
+            work.html = true;
+        work.merge = keepMerged ? work.changed || ! doc.getMerged().exists() : work.mergedHtml;
+        return work;
+    }
+
+    /**
+     * Queue the work into the pipeline.
+     *
+     * @return false if there was nothing to do
+     */
+    private boolean submit(Document doc, Work work, ConversionPipeline pipeline, ConversionManifest manifest) throws IOException {
+        if (getQuarantine().isQuarantined(doc.getSrc())) {
+            logger.warn("o_O " + doc.getSrc() + " is quarantined, not converting it (see " + quarantineFile + ")");
+            return false;
+        }
+        if (! (work.merge || work.html || work.mergedHtml)) {
+            if (! manifest.contains(doc))
+                manifest.update(doc); // converted before we had a manifest
+            SearchIndex index = getSearchIndex();
+            if (index != null && ! index.contains(doc.getSrc()))
+                indexDocument(doc, index); // converted before we had an index
+            return false;
         }
-        
-        for (Document doc : toMergedHtml) {
-            if (! doc.getMerged().exists()) {
-                logger.warn("o_O can't make merged html file if merged file " + doc.getMerged() + " doesn't exist ..");
-                continue;
-            }
-            DocToHtml.callTika(doc.getMerged(), doc.getMergedHtml());
-        }                            
 
-        return docs;
+        File outdir = doc.getHtml().getParentFile();
+        if (! outputDirs.contains(outdir)) {
+            FileUtils.forceMkdir(outdir);
+            outputDirs.add(outdir);
+        }
+        pipeline.submit(doc, work.merge, work.html, work.mergedHtml);
+        return true;
     }
 }
@@ -6,13 +6,10 @@ import java.net.*;
 import java.text.*;
 import java.util.regex.*;
 import org.apache.commons.logging.*;
-import org.jsoup.*;
-import org.jsoup.select.*;
-import org.jsoup.nodes.*;
 
 /**
  * ParseInspectionsList - parse a .doc with a list of open cases into
- * a mysql database
+ * the case store (see CaseStore)
  * 
  * The inspector general maintains a MS Word (.doc) document with a table of
  * new cases (one fresh table per calendar year). We need to parse out a list
@@ -31,7 +28,8 @@ import org.jsoup.nodes.*;
  * with a template for opening case. That we discard.
  *
  * The way we parse is we use Apache Tika (a q&d hack of their TikaCLI class)
- * to convert the .doc to html. We then use jsoup to parse out the tables. This
+ * to parse the .doc, and pick the tables out of its SAX events as they stream
+ * by, keeping only the last few (see CaseListHandler). This
  * appears to be easier as the .doc is saved in an older (propriatery) word format
  * and Apache POI doesn't have the methods to extract the tables directly.
  * Converting the document to .docx etc does not appear to be an option atm. Also,
@@ -47,13 +45,22 @@ import org.jsoup.nodes.*;
 public class ParseInspectionsList {
     public static final Log logger = 
         LogFactory.getLog(ParseInspectionsList.class);
-    private boolean debug = false;
-    private String debugFilename = "zadeve.html";
 
     private File listFile;
+    private File caseStoreFile;
+    private File listCacheFile;
+    private File nadzornikiFile;
     private File documentsDir;
     private int includeLastNYears = 3;
-    private String html;
+
+    // the last includeLastNYears + 2 tables of the list (the +1 is the template)
+    private List<CaseListHandler.Table> tables;
+    private int tableCount;
+
+    // the tables and cases from the last run
+    private ListCache cache;
+
+    private final CaseRowParser rowParser = new CaseRowParser();
 
     public static void main(String[] args) throws Exception {
         ParseInspectionsList parser = new ParseInspectionsList();
@@ -95,8 +102,6 @@ public class ParseInspectionsList {
         props.load(in);
         in.close();
 
-        this.debug = "1".equals(props.getProperty("debug"));
-
         if (this.listFile == null) {
             String listFilename = props.getProperty("list_filename");
             if (listFilename == null)
@@ -111,36 +116,65 @@ public class ParseInspectionsList {
 
         // todo: document dirs (zapisniki, sklepi o neuvedbi, sklepi o ustavitvi, odločbe)
 
+        // the parsed cases go here; by default next to the converted documents
+        String caseStore = props.getProperty("case_store");
+        if (caseStore != null)
+            this.caseStoreFile = new File(caseStore);
+        else if (props.getProperty("destination_dir") != null)
+            this.caseStoreFile = new File(props.getProperty("destination_dir"), CaseStore.FILENAME);
+        else
+            this.caseStoreFile = new File(this.listFile.getAbsoluteFile().getParentFile(), CaseStore.FILENAME);
+
+        // what came out of the list last time, next to the cases
+        String listCache = props.getProperty("list_cache");
+        this.listCacheFile = listCache == null ? new File(this.caseStoreFile.getAbsoluteFile().getParentFile(), ListCache.FILENAME) : new File(listCache);
+
         int includeLastNYears = Integer.parseInt(props.getProperty("include_last_n_years", "3"));
         if (includeLastNYears > 10 || includeLastNYears < 1) {
             logger.warn("o_O invalid include_last_n_years property. Should be an int in [1,10]. Defaulting to 1.");
             includeLastNYears = 1;
         }
         this.includeLastNYears = includeLastNYears;
+
+        // the proper names of nadzorniki, for fixing typos
+        File nadzorniki = new File(props.getProperty("nadzorniki_file", "nadzorniki"));
+        this.nadzornikiFile = nadzorniki;
+        if (nadzorniki.exists()) {
+            Case.setNadzornikResolver(NadzornikResolver.load(nadzorniki));
+        } else {
+            logger.warn("o_O nadzorniki file '" + nadzorniki.getCanonicalPath() + "' could not be found, only the few built in " +
+                "typos in names will be fixed");
+            Case.setNadzornikResolver(NadzornikResolver.builtIn());
+        }
     }
 
     /**
-     * Convert .doc into html.
+     * Parse the .doc and keep the tables we need.
      *
-     * If debug mode is one, and a pre-prepared .html file is in place, that will be used instead
-     * because the Tika conversion takes quite a while.
+     * If the .doc didn't change since the last run, the tables come from the
+     * list cache instead, because the Tika conversion takes quite a while.
      */
     protected void loadList() throws Exception {
-        if (debug) {
-            File debugFile = new File(this.debugFilename);
-            if (debugFile.exists()) {
-                logger.info("Loading case list from debug file: " + debugFile.getCanonicalPath());
-                this.html = new Scanner(debugFile, "UTF-8").
-                    useDelimiter("\\A").next();
-                return;
-            }
+        // the tables for the years we want, the year before that, and the template
+        int window = includeLastNYears + 2;
+
+        this.cache = ListCache.load(listCacheFile);
+        List<CaseListHandler.Table> cached = cache.getTables(listFile, window);
+        if (cached != null) {
+            logger.info("List file " + listFile + " didn't change since the last run, using its tables from " + listCacheFile);
+            this.tables = cached;
+            this.tableCount = cache.getTableCount();
+            return;
         }
 
-        this.html = DocToHtml.callTika(listFile);
+        CaseListHandler list = new CaseListHandler(window);
+        DocToHtml.getInstance().parse(listFile, list);
+        this.tables = new ArrayList<CaseListHandler.Table>(list.getTables());
+        this.tableCount = list.getTableCount();
     }
 
     /**
-     * Parse the html obtained from the case list .doc.
+     * Parse the tables obtained from the case list .doc.
      * 
      * The .doc is comprised of several tables with a list of open cases, one table per year.
      * Fields are #, prijavitelj, zavezanec - opis zadeve, nadzornik, datum.
@@ -149,12 +183,14 @@ public class ParseInspectionsList {
      *
      */
     public void parse() throws Exception {
-        org.jsoup.nodes.Document soup = Jsoup.parse(this.html);
         List<Case> cases = new ArrayList<Case>();
+        Map<CaseRowParser.Confidence, Integer> confidence = new EnumMap<CaseRowParser.Confidence, Integer>(CaseRowParser.Confidence.class);
+        for (CaseRowParser.Confidence c : CaseRowParser.Confidence.values())
+            confidence.put(c, 0);
         
         // get the tables
-        Elements tables = soup.select("table");
-        int numTables = tables.size();
+        List<CaseListHandler.Table> tables = new ArrayList<CaseListHandler.Table>(this.tables);
+        int numTables = tableCount;
         if (numTables == 0)
             throw new NoSuchElementException("o_O Could not find <table> "+
                 "elements within the list file");
@@ -163,145 +199,127 @@ public class ParseInspectionsList {
                 ") in the list file");
         
         // throw away the last table (the tamplate for opening new cases)
-        Element lastTable = tables.get(numTables -1);
-        String lastHtml = lastTable.html();
-        if (lastHtml.contains("Vrsta zadeve") && lastHtml.contains("Subjekt zadeve:")) {
+        CaseListHandler.Table lastTable = tables.get(tables.size() -1);
+        if (lastTable.looksLikeTemplate()) {
             tables.remove(lastTable); 
         } else {
             logger.warn("o_O The last table doesn't look like a new case template.");
         }
 
         // get the relevant tabels (usually for the last couple of years)
-        if (includeLastNYears > tables.size())
-            includeLastNYears = tables.size();
-        List<Element> tablesToParse = tables.subList(tables.size() - includeLastNYears - 1, tables.size());
-
-        // do the harlem shake
-        for (Element table : tablesToParse) {
-            Elements rows = table.select("tr");
-            Iterator<Element> rowsIterator = rows.iterator();
+        int numToParse = Math.min(includeLastNYears + 1, tables.size());
+        List<CaseListHandler.Table> tablesToParse = tables.subList(tables.size() - numToParse, tables.size());
+
+        // do the harlem shake, but only on the tables that changed since the last run
+        String stamp = ListCache.stamp(nadzornikiFile);
+        Map<CaseListHandler.Table, List<Case>> parsedTables = new HashMap<CaseListHandler.Table, List<Case>>();
+        int reused = 0, reusedCases = 0;
+        for (CaseListHandler.Table table : tablesToParse) {
+            List<Case> tableCases = cache.getCases(table, stamp);
+            if (tableCases != null) {
+                cases.addAll(tableCases);
+                parsedTables.put(table, tableCases);
+                reused++;
+                reusedCases += tableCases.size();
+                continue;
+            }
+            tableCases = new ArrayList<Case>();
+
+            Iterator<String[]> rowsIterator = table.getRows().iterator();
             if (rowsIterator.hasNext())
                 rowsIterator.next(); // disregard first row (heading)
 
             while (rowsIterator.hasNext()) {
-                Element row = rowsIterator.next();
-                Elements cols = row.select("td");
-                if (cols.size() != 5) {
-                    logger.warn("o_O we found a row that doesn't have the usual 5 columns, skipping: " + row.html());
+                String[] cols = rowsIterator.next();
+                String row = formatRow(cols);
+                if (cols.length != 5) {
+                    logger.warn("o_O we found a row that doesn't have the usual 5 columns, skipping: " + row);
                     continue;
                 }
 
-                // the columns. the first one (#) is kapput for some reason, and
-                // we don't need it anyway
-                String prijavitelj = cols.get(1).text().trim();
-                String zavezanecOpis = cols.get(2).text().trim();
-                String nadzornikInSteviloPrimerov = cols.get(3).text().trim();
-                String datumDodelitveString = cols.get(4).text().trim();
-                boolean hasWarnings = false;                    
-
-                // date first. if the date isn't valid just throw away the row.
-                Date datumDodelitve = null;
-                SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yy");
+                // the columns. the first one (#) is kapput for some reason, but it
+                // sometimes has the case number. if the date isn't valid just throw away the row.
+                CaseRowParser.Row parsed;
                 try {           
-                    datumDodelitve = sdf.parse(datumDodelitveString);
+                    parsed = rowParser.parse(cols);
                 } catch (ParseException pe) {
                     if (rowsIterator.hasNext()) { // isn't last line
-                        logger.warn("o_O we found a row with an invalid date, and it doesn't seem to be the last one: " + row.html(), pe);
+                        logger.warn("o_O we found a row with an invalid date, and it doesn't seem to be the last one: " + row, pe);
                     }
                     continue;            
                 }
 
+                // a date that doesn't exist (31.11.), rolled over into the next month
+                if (parsed.getDateConfidence() != CaseRowParser.Confidence.HIGH) {
+                    logger.warn("o_O list parsing warning: found a row with a date that doesn't exist, '" + cols[4].trim() +
+                        "', taking it as " + new SimpleDateFormat("dd.MM.yyyy").format(parsed.getDatumDodelitve()) +
+                        ". Consider fixing this row:\n" + formatForLog(row));
+                }
+
                 // zavezanec, short case description
                 // there's a dash seperating the two, and since this was entered by hand,
                 // there may be problems with parsing. warn if so.
-                String zavezanec = null;
-                String opis = null;
-                String[] separators = new String[] { " - ", " - ", " – " };
-                for (String separator : separators) {
-                    String[] parts = zavezanecOpis.split(separator);
-                    if (parts.length != 2) {
-                        continue;
-                    } else {
-                        zavezanec = parts[0].trim();
-                        opis = parts[1].trim();             
-                    }
-                }
-                if (zavezanec == null) {
+                if (parsed.getZavezanecOpisConfidence() != CaseRowParser.Confidence.HIGH) {
                     logger.warn("o_O list parsing warning: found a row where I can't " +
                         "decisively split the zavezanec and the opis strings from '" + 
-                        zavezanecOpis + "'. Consider fixing this row:\n" + formatForLog(row.html()));
-                    hasWarnings = true;
-
-                    // try again with more separators. This will propbably yield mistakes but the user has been warned
-                    separators = new String[] { " - ", " - ", " – ", "\\s*-\\s*", "\\s*-\\s*", "\\s*–\\s*" };
-                    for (String separator : separators) {
-                        String[] parts = zavezanecOpis.split(separator);
-                        if (parts.length == 2) {
-                            zavezanec = parts[0];
-                            opis = parts[1];             
-                        } else {
-                            int i = zavezanecOpis.lastIndexOf(separator);
-                            if (i == -1) {
-                                zavezanec = zavezanecOpis;
-                            } else {
-                                zavezanec = zavezanecOpis.substring(0, i);
-                                opis = parts[parts.length -1];
-                            } 
-                        }
-                    }
+                        cols[2].trim() + "'. Consider fixing this row:\n" + formatForLog(row));
                 }
 
                 // nadzornikInSteviloPrimerov
                 // also separated by dash, similar story.
-                String nadzornik = null;
-                String separator = "\\s*-\\s*";
-                String[] parts = nadzornikInSteviloPrimerov.split(separator, 2);
-                if (parts.length != 2) {
+                if (parsed.getNadzornikConfidence() != CaseRowParser.Confidence.HIGH) {
                     logger.warn("o_O list parsing warning: found a row where I can't " +
                         "decisively split the nadzornik and their case load from '" + 
-                        nadzornikInSteviloPrimerov + "'. Consider fixing this row: " + row.html());
-                    nadzornik = nadzornikInSteviloPrimerov;
-                    hasWarnings = true;
-                } else {
-                    nadzornik = parts[0];
+                        cols[3].trim() + "'. Consider fixing this row: " + row);
                 }
      
                 // all done
-                Case c = new Case(prijavitelj, zavezanec, opis, nadzornik, datumDodelitve);
-                cases.add(c);
+                tableCases.add(parsed.toCase());
+                confidence.put(parsed.getConfidence(), confidence.get(parsed.getConfidence()) + 1);
             }
+            cases.addAll(tableCases);
+            parsedTables.put(table, tableCases);
         }
+        logger.info(String.format("Parsed %d rows, confidence: %s; %d more cases from %d unchanged tables",
+            cases.size() - reusedCases, confidence, reusedCases, reused));
+        cache.save(listFile, tableCount, this.tables, parsedTables, stamp);
 
         // some sanity checking
         checkNadzorniki(cases);
 
-        for (Case c : cases) {
-            System.out.println(String.format("GUCCI\t'%s'\t'%s'\t'%s'\t'%s'\t'%s'\t'%s'", 
-                "?", c.getDatumDodelitve(), c.getZavezanec(), c.getOpis(), c.getPrijavitelj(), c.getNadzornik()));
+        CaseStore store = CaseStore.open(caseStoreFile);
+        try {
+            int changed = store.putAll(cases);
+            logger.info(String.format("%d new or changed cases stored in %s (%d cases in the store)", changed, caseStoreFile, store.size()));
+        } finally {
+            store.close();
         }
     }
 
+    /**
+     * The cells of a row, for logging
+     */
+    private String formatRow(String[] cols) {
+        return "| " + String.join(" | ", cols) + " |";
+    }
+
     /**
      * Check for spelling mistakes in nadzorniki's names
      */
     protected void checkNadzorniki(List<Case> cases) {
-        // count up the number of cases given to each nadzornik
-        Map<String, Integer> caseload = new HashMap<String, Integer>();
-        for (Case c : cases) {
-            String nadzornik = c.getNadzornik();
-            if (caseload.containsKey(nadzornik)) {
-                caseload.put(nadzornik, caseload.get(nadzornik)+1);
-            } else {
-                caseload.put(nadzornik, 1);
-            }          
-        }
+        // what the typos were resolved to, and the names that couldn't be
+        NadzornikResolver resolver = Case.getNadzornikResolver();
+        resolver.logMappings();
 
-        Iterator<Map.Entry<String, Integer>> it = caseload.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Integer> pair = it.next();
-            logger.info(String.format("Nadzornik '%s' was assigned '%s' cases", pair.getKey(), pair.getValue()));
-            if (pair.getValue() < 5)
-                logger.warn(String.format("o_O probably a miss-spelled nadzornik name: '%s' (%s uses)", pair.getKey(), pair.getValue()));
+        // count up the number of cases given to each nadzornik
+        CaseTable table = new CaseTable(cases);
+        int[] caseload = table.countByNadzornik(CaseTable.NO_DATE, CaseTable.NO_DATE);
+
+        for (int id : table.getNadzornikIds()) {
+            String nadzornik = table.getName(id);
+            logger.info(String.format("Nadzornik '%s' was assigned '%s' cases", nadzornik, caseload[id]));
+            if (caseload[id] < 5 && ! resolver.isKnown(nadzornik))
+                logger.warn(String.format("o_O probably a miss-spelled nadzornik name: '%s' (%s uses)", nadzornik, caseload[id]));
         }        
         
     }
@@ -0,0 +1,281 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Timing and throughput of the conversion run, per stage: how many documents
+ * went through (and how many failed), a latency histogram, bytes read and
+ * written, and the slowest few documents.
+ *
+ * The stages are the source directory scan, the merge (Aspose), the html and
+ * merged html conversions (Tika; the output is streamed straight into the file,
+ * so writing it is part of the conversion), linking the merged html of
+ * documents without tracked changes, and writing the report. Fast field
+ * extraction (no html, see {@link DocToHtml#extractFields}) has a stage of
+ * its own, with the characters read as its output.
+ *
+ * Recording is lock free except for the slowest documents list, so the
+ * pipeline's workers can all record at once. While the run is going, the
+ * numbers can be watched over JMX ({@link #register()}); at the end, the
+ * summary is written into a tab separated file ({@link #write(File)}).
+ *
+ * The histogram buckets are powers of two in milliseconds, so percentiles
+ * are upper bounds, good to within a factor of two.
+ *
+ * @author ikolar
+ */
+public class PipelineStats implements PipelineStatsMBean {
+    public static final Log logger =
+        LogFactory.getLog(PipelineStats.class);
+
+    public static final String SCAN = "scan";
+    public static final String MERGE = "merge";
+    public static final String HTML = "html";
+    public static final String MERGED_HTML = "merged-html";
+    public static final String LINK = "link";
+    public static final String REPORT = "report";
+    public static final String EXTRACT = "extract";
+
+    private static final String[] STAGES = new String[] { SCAN, MERGE, HTML, MERGED_HTML, LINK, REPORT, EXTRACT };
+    private static final double[] PERCENTILES = new double[] { 50, 90, 99 };
+    private static final int BUCKETS = 32; // bucket i: [2^(i-1), 2^i) ms, bucket 0: < 1 ms
+    private static final int SLOWEST = 10;
+    private static final String ENCODING = "UTF-8";
+
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private ObjectName name;
+
+    /**
+     * One recorded document (or directory, for the scan).
+     */
+    private static class Sample implements Comparable<Sample> {
+        final long nanos;
+        final String name;
+
+        Sample(long nanos, String name) {
+            this.nanos = nanos;
+            this.name = name;
+        }
+
+        public int compareTo(Sample o) {
+            return nanos < o.nanos ? -1 : nanos > o.nanos ? 1 : 0;
+        }
+    }
+
+    private static class Stage {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final PriorityQueue<Sample> slowest = new PriorityQueue<Sample>(); // fastest of the slowest on top
+    }
+
+    public PipelineStats() {
+        // never modified after this, so lookups don't need locking
+        for (String stage : STAGES)
+            stages.put(stage, new Stage());
+    }
+
+    /**
+     * Record one document going through a stage.
+     *
+     * @param name the document (or directory) the time was spent on
+     * @param nanos how long it took (System.nanoTime() difference)
+     */
+    public void record(String stage, String name, long nanos, long bytesIn, long bytesOut, boolean failed) {
+        Stage s = stage(stage);
+        s.count.incrementAndGet();
+        if (failed)
+            s.failed.incrementAndGet();
+        s.nanos.addAndGet(nanos);
+        s.bytesIn.addAndGet(bytesIn);
+        s.bytesOut.addAndGet(bytesOut);
+        s.buckets.incrementAndGet(bucket(nanos / 1000000));
+
+        synchronized (s.slowest) {
+            if (s.slowest.size() < SLOWEST) {
+                s.slowest.add(new Sample(nanos, name));
+            } else if (s.slowest.peek().nanos < nanos) {
+                s.slowest.poll();
+                s.slowest.add(new Sample(nanos, name));
+            }
+        }
+    }
+
+    private Stage stage(String stage) {
+        Stage s = stages.get(stage);
+        if (s == null)
+            throw new IllegalArgumentException("o_O unknown pipeline stage '" + stage + "'");
+        return s;
+    }
+
+    private static int bucket(long millis) {
+        int b = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    public String[] getStages() {
+        return STAGES.clone();
+    }
+
+    public long getCount(String stage) {
+        return stage(stage).count.get();
+    }
+
+    public long getFailed(String stage) {
+        return stage(stage).failed.get();
+    }
+
+    public double getMeanMillis(String stage) {
+        Stage s = stage(stage);
+        long count = s.count.get();
+        return count == 0 ? 0 : s.nanos.get() / 1e6 / count;
+    }
+
+    public long getPercentileMillis(String stage, double percentile) {
+        Stage s = stage(stage);
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = s.buckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return i == 0 ? 1 : 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public long getBytesIn(String stage) {
+        return stage(stage).bytesIn.get();
+    }
+
+    public long getBytesOut(String stage) {
+        return stage(stage).bytesOut.get();
+    }
+
+    public String[] getSlowest(String stage) {
+        List<Sample> samples = slowest(stage(stage));
+        String[] slowest = new String[samples.size()];
+        for (int i = 0; i < slowest.length; i++)
+            slowest[i] = samples.get(i).nanos / 1000000 + "\t" + samples.get(i).name;
+        return slowest;
+    }
+
+    private static List<Sample> slowest(Stage s) {
+        List<Sample> samples;
+        synchronized (s.slowest) {
+            samples = new ArrayList<Sample>(s.slowest);
+        }
+        Collections.sort(samples, Collections.reverseOrder());
+        return samples;
+    }
+
+    /**
+     * The summary, tab separated. Lines starting with "stage" have the
+     * stage, count, failed, total ms, mean ms, p50, p90, p99 and max ms
+     * (upper bounds), bytes in and bytes out. Lines starting with "slowest"
+     * have the stage, ms and the document.
+     */
+    public String getSummary() {
+        StringBuilder out = new StringBuilder();
+        out.append("#stage\tcount\tfailed\ttotal_ms\tmean_ms");
+        for (double p : PERCENTILES)
+            out.append("\tp").append((int) p).append("_ms");
+        out.append("\tmax_ms\tbytes_in\tbytes_out\n");
+
+        for (Map.Entry<String, Stage> e : stages.entrySet()) {
+            String stage = e.getKey();
+            Stage s = e.getValue();
+            out.append(String.format(Locale.ROOT, "stage\t%s\t%d\t%d\t%d\t%.1f",
+                stage, s.count.get(), s.failed.get(), s.nanos.get() / 1000000, getMeanMillis(stage)));
+            for (double p : PERCENTILES)
+                out.append("\t").append(getPercentileMillis(stage, p));
+            out.append("\t").append(getPercentileMillis(stage, 100));
+            out.append("\t").append(s.bytesIn.get()).append("\t").append(s.bytesOut.get()).append("\n");
+        }
+
+        out.append("#slowest\tstage\tms\tname\n");
+        for (Map.Entry<String, Stage> e : stages.entrySet()) {
+            for (Sample sample : slowest(e.getValue()))
+                out.append("slowest\t").append(e.getKey()).append("\t").append(sample.nanos / 1000000)
+                    .append("\t").append(sample.name).append("\n");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the summary into a file (atomically).
+     */
+    public void write(File file) throws IOException {
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                out.write(getSummary());
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+        logger.info("Wrote pipeline stats to " + file);
+    }
+
+    /**
+     * Log one line per stage that did anything.
+     */
+    public void log() {
+        for (String stage : STAGES) {
+            long count = getCount(stage);
+            if (count == 0)
+                continue;
+            logger.info(String.format(Locale.ROOT, "Stage %s: %d done (%d failed), mean %.1f ms, p90 <= %d ms, %d bytes in, %d bytes out",
+                stage, count, getFailed(stage), getMeanMillis(stage), getPercentileMillis(stage, 90),
+                getBytesIn(stage), getBytesOut(stage)));
+        }
+    }
+
+    /**
+     * Expose the stats over JMX (si.iprs.reports:type=PipelineStats). A
+     * failure to register is logged, the run doesn't need JMX.
+     */
+    public void register() {
+        try {
+            ObjectName n = new ObjectName("si.iprs.reports:type=PipelineStats");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(n))
+                server.unregisterMBean(n);
+            server.registerMBean(this, n);
+            name = n;
+        } catch (JMException e) {
+            logger.warn("o_O could not register pipeline stats with JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            logger.warn("o_O could not unregister pipeline stats from JMX: " + e.getMessage());
+        }
+        name = null;
+    }
+}
@@ -0,0 +1,33 @@
+package si.iprs.reports;
+
+/**
+ * JMX view of {@link PipelineStats}, for watching a run while it's in
+ * progress (jconsole, jvisualvm).
+ *
+ * @author ikolar
+ */
+public interface PipelineStatsMBean {
+    String[] getStages();
+
+    long getCount(String stage);
+
+    long getFailed(String stage);
+
+    double getMeanMillis(String stage);
+
+    long getPercentileMillis(String stage, double percentile);
+
+    long getBytesIn(String stage);
+
+    long getBytesOut(String stage);
+
+    /**
+     * The slowest documents of a stage, slowest first ("millis<tab>name").
+     */
+    String[] getSlowest(String stage);
+
+    /**
+     * The whole summary, as it would be written at the end of the run.
+     */
+    String getSummary();
+}
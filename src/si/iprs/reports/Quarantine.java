@@ -0,0 +1,115 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Source documents that hung or crashed a conversion worker (see
+ * {@link WorkerException}), so they aren't tried again (and again) on every
+ * run. A quarantined document is let out as soon as it changes (size or
+ * mtime), or when its line is deleted from the file.
+ *
+ * The quarantine is a tab separated file in the destination directory:
+ * source, size, mtime, reason.
+ *
+ * @author ikolar
+ */
+public class Quarantine {
+    public static final Log logger =
+        LogFactory.getLog(Quarantine.class);
+
+    public static final String FILENAME = "porocila.quarantine";
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+    private final Map<String, String[]> entries = new TreeMap<String, String[]>();
+    private boolean dirty = false;
+
+    protected Quarantine(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the quarantine file. A missing file is an empty quarantine.
+     */
+    public static Quarantine load(File file) throws IOException {
+        Quarantine quarantine = new Quarantine(file);
+        if (! file.exists())
+            return quarantine;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length != 4) {
+                    logger.warn("o_O skipping malformed quarantine line in " + file + ": " + line);
+                    continue;
+                }
+                if (new File(cols[0]).exists())
+                    quarantine.entries.put(cols[0], cols);
+                else
+                    quarantine.dirty = true; // the source is gone
+            }
+        } finally {
+            in.close();
+        }
+        if (! quarantine.entries.isEmpty())
+            logger.info(String.format("%d documents are quarantined, see %s", quarantine.entries.size(), file));
+        return quarantine;
+    }
+
+    /**
+     * Is the source quarantined (and unchanged since)?
+     */
+    public synchronized boolean isQuarantined(File src) {
+        String path = src.getAbsolutePath();
+        String[] entry = entries.get(path);
+        if (entry == null)
+            return false;
+
+        if (! (Long.toString(src.length()).equals(entry[1]) && Long.toString(src.lastModified()).equals(entry[2]))) {
+            logger.info("Quarantined " + src + " changed, giving it another go");
+            entries.remove(path);
+            dirty = true;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void add(File src, String reason) {
+        logger.warn(String.format("o_O quarantining %s, it won't be converted again until it changes: %s", src, reason));
+        entries.put(src.getAbsolutePath(), new String[] {
+            src.getAbsolutePath(), Long.toString(src.length()), Long.toString(src.lastModified()),
+            reason == null ? "" : reason.replaceAll("[\t\r\n]+", " ") });
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the quarantine back, if anything changed.
+     */
+    public synchronized void save() throws IOException {
+        if (! dirty)
+            return;
+
+        File tmp = AtomicFiles.newTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(AtomicFiles.newOutputStream(tmp), ENCODING);
+            try {
+                for (String[] entry : entries.values())
+                    out.write(entry[0] + "\t" + entry[1] + "\t" + entry[2] + "\t" + entry[3] + "\n");
+            } finally {
+                out.close();
+            }
+            AtomicFiles.commit(tmp, file);
+            dirty = false;
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+    }
+}
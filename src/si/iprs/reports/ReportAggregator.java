@@ -0,0 +1,231 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * ReportAggregator - the java version of report2.sh
+ *
+ * Reads the report (nadzornik, type, date, case no, path; tab separated, as made
+ * by report.sh) once and prints, for each document type, a table of documents
+ * per nadzornik per month, followed by the list of accepted files per nadzornik
+ * and the list of files that didn't count (nadzornik not recognized).
+ *
+ * The nadzorniki and nadzorniki.ignore files are read from the report's
+ * directory, just like the shell script did.
+ *
+ * The output is the same as report2.sh's, except that the list of files that
+ * didn't count only has files from the requested months, and only once (the
+ * script listed the whole report once for every month).
+ *
+ * @author ikolar
+ */
+public class ReportAggregator {
+    private static final String ENCODING = "UTF-8";
+
+    private final int year, startMonth, stopMonth;
+
+    // short name -> nice name, from the nadzorniki file
+    private final List<String[]> nadzorniki = new ArrayList<String[]>();
+    private final Set<String> ignored = new HashSet<String>();
+
+    // the report, read once
+    private final SortedSet<String> reportNadzorniki = new TreeSet<String>();
+    private final SortedSet<String> types = new TreeSet<String>();
+    private final Map<String, int[]> counts = new HashMap<String, int[]>();
+    private final Map<String, List<String>> files = new HashMap<String, List<String>>();
+    private final List<String> invalid = new ArrayList<String>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java -cp .. ReportAggregator <report file> <year> <start month> <stop month>");
+            System.exit(-1);
+        }
+
+        File report = new File(args[0]).getCanonicalFile();
+        ReportAggregator aggregator = new ReportAggregator(
+            Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        aggregator.loadNadzorniki(new File(report.getParentFile(), "nadzorniki"),
+            new File(report.getParentFile(), "nadzorniki.ignore"));
+        aggregator.loadReport(report);
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, ENCODING));
+        aggregator.print(out);
+        out.flush();
+    }
+
+    public ReportAggregator(int year, int startMonth, int stopMonth) {
+        if (startMonth < 1 || stopMonth > 12 || startMonth > stopMonth)
+            throw new IllegalArgumentException("o_O invalid month range " + startMonth + ".." + stopMonth);
+        this.year = year;
+        this.startMonth = startMonth;
+        this.stopMonth = stopMonth;
+    }
+
+    /**
+     * Load the authoritative list of nadzorniki (short name, nice name) and
+     * the ones to ignore. Lines with a # are comments.
+     */
+    public void loadNadzorniki(File nadzornikiFile, File ignoreFile) throws IOException {
+        for (String line : readLines(nadzornikiFile)) {
+            if (line.contains("#") || line.trim().isEmpty())
+                continue;
+            String[] cols = line.split("\t", -1);
+            nadzorniki.add(new String[] { cols[0], cols.length > 1 ? cols[1] : "" });
+        }
+
+        if (ignoreFile.exists()) {
+            for (String line : readLines(ignoreFile)) {
+                if (line.contains("#") || line.trim().isEmpty())
+                    continue;
+                ignored.add(line.split("\t", -1)[0].trim().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Read the report and count everything in one go.
+     */
+    public void loadReport(File report) throws IOException {
+        String[] months = new String[13];
+        for (int m = startMonth; m <= stopMonth; m++)
+            months[m] = String.format("%d-%02d", year, m);
+
+        for (String line : readLines(report)) {
+            String[] cols = line.split("\t", -1);
+            if (cols.length < 4)
+                continue;
+
+            String nadzornik = cols[0].replaceAll("\\s", "");
+            if (! nadzornik.isEmpty())
+                reportNadzorniki.add(nadzornik);
+            types.add(cols[1]);
+
+            int month = 0;
+            for (int m = startMonth; m <= stopMonth; m++) {
+                if (cols[2].startsWith(months[m])) {
+                    month = m;
+                    break;
+                }
+            }
+            if (month == 0)
+                continue;
+
+            String key = key(cols[0].trim(), cols[1]);
+            int[] c = counts.get(key);
+            if (c == null) {
+                c = new int[13];
+                counts.put(key, c);
+                files.put(key, new ArrayList<String>());
+            }
+            c[month]++;
+            files.get(key).add(cols[2] + "\t" + cols[3]);
+
+            if (! isKnown(cols[0]))
+                invalid.add(cols[0] + "\t" + cols[2] + "\t" + cols[3]);
+        }
+    }
+
+    /**
+     * Print the tables, then the accepted files and then the ones that didn't count.
+     */
+    public void print(PrintWriter out) {
+        StringBuilder log = new StringBuilder();
+        SimpleDateFormat monthName = new SimpleDateFormat("MMM");
+        Calendar cal = Calendar.getInstance();
+
+        // everyone in the report, plus those on the authoritative list
+        // (Jelena just returned and she has no docs, bust must be included etc)
+        SortedSet<String> all = new TreeSet<String>(reportNadzorniki);
+        for (String[] n : nadzorniki)
+            all.add(n[0]);
+
+        for (String t : types) {
+            // header
+            out.print(t + "\tskupaj\t");
+            for (int m = startMonth; m <= stopMonth; m++) {
+                cal.set(year, m - 1, 1);
+                out.print(monthName.format(cal.getTime()) + "\t");
+            }
+            out.print("\n");
+
+            for (String n : all) {
+                // ignoriraj vodjo nadzornikov, namestnike
+                if (ignored.contains(n.toLowerCase()))
+                    System.err.println("INFO: ingoring nadzornik " + n + " due to entry in nadzorniki.ignore file");
+
+                String nice = nice(n);
+                if (nice == null)
+                    continue;
+                log.append(nice).append(" (").append(n).append("):\n");
+                log.append(t).append("\n");
+
+                String key = key(n, t);
+                int[] c = counts.containsKey(key) ? counts.get(key) : new int[13];
+                int total = 0;
+                StringBuilder s = new StringBuilder();
+                for (int m = startMonth; m <= stopMonth; m++) {
+                    total += c[m];
+                    s.append(c[m]).append("\t");
+                }
+                out.print(nice + "\t" + total + "\t" + s + "\n");
+
+                if (files.containsKey(key)) {
+                    for (String f : files.get(key))
+                        log.append(f).append("\n");
+                }
+                log.append("\n");
+            }
+            out.print("\n");
+        }
+
+        out.print(log);
+        out.print("Neupoštevane datoteke:\n");
+        for (String f : invalid)
+            out.print(f + "\n");
+    }
+
+    /**
+     * Nice name of the nadzornik (the first entry on the authoritative list
+     * that starts with the name), or null if it's not on the list.
+     */
+    private String nice(String n) {
+        if (n.isEmpty())
+            return null;
+        String lower = n.toLowerCase();
+        for (String[] entry : nadzorniki) {
+            if (entry[0].toLowerCase().startsWith(lower) && ! entry[1].isEmpty())
+                return entry[1];
+        }
+        return null;
+    }
+
+    /**
+     * Does the name start with one of the short names on the authoritative list?
+     */
+    private boolean isKnown(String n) {
+        for (String[] entry : nadzorniki) {
+            if (! entry[0].isEmpty() && n.startsWith(entry[0]))
+                return true;
+        }
+        return false;
+    }
+
+    private static String key(String nadzornik, String type) {
+        return nadzornik.toLowerCase() + "\t" + type.toLowerCase();
+    }
+
+    private static List<String> readLines(File f) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), ENCODING));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
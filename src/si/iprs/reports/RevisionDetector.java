@@ -0,0 +1,88 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import org.apache.commons.io.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Cheap check whether a document has any tracked changes (revisions), so
+ * documents without them can skip the merge and the second html conversion.
+ *
+ * A .docx is a zip of xml parts, and revisions are plain <w:ins>, <w:del>,
+ * <w:*PrChange> etc. elements in them, so we just scan the text of the parts
+ * without loading the document. The old binary .doc format can't be checked
+ * this way; for those the answer is "don't know" and Aspose has to look.
+ *
+ * @author ikolar
+ */
+public class RevisionDetector {
+    public static final Log logger =
+        LogFactory.getLog(RevisionDetector.class);
+
+    // w:delText and friends only appear inside a w:del, so they don't need matching
+    private static final Pattern REVISION = Pattern.compile(
+        "<w:(ins|del|moveFrom|moveTo|cellIns|cellDel|cellMerge|numberingChange|[a-zA-Z]+PrChange|sectPrChange)[\\s>/]");
+
+    // parts of the .docx that can hold revisions
+    private static final Pattern PART = Pattern.compile(
+        "word/(document|header\\d*|footer\\d*|footnotes|endnotes|comments)\\.xml");
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int OVERLAP = 64; // longer than any REVISION match
+
+    /**
+     * @return true/false if the document does/doesn't have revisions, or
+     *         null if we can't tell without loading it
+     */
+    public Boolean hasRevisions(File doc) {
+        if (! "docx".equalsIgnoreCase(FilenameUtils.getExtension(doc.getName())))
+            return null;
+
+        try {
+            ZipFile zip = new ZipFile(doc);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (! PART.matcher(entry.getName()).matches())
+                        continue;
+                    if (hasRevisions(zip.getInputStream(entry)))
+                        return Boolean.TRUE;
+                }
+            } finally {
+                zip.close();
+            }
+            return Boolean.FALSE;
+        } catch (IOException e) {
+            logger.warn("o_O could not scan " + doc + " for revisions, Aspose will have to check: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Scan the xml part in chunks; the chunks overlap a bit so matches
+     * spanning two chunks aren't missed.
+     */
+    private boolean hasRevisions(InputStream part) throws IOException {
+        Reader in = new InputStreamReader(part, "UTF-8");
+        try {
+            char[] buf = new char[CHUNK + OVERLAP];
+            int carry = 0;
+            int n;
+            while ((n = in.read(buf, carry, CHUNK)) != -1) {
+                int len = carry + n;
+                if (REVISION.matcher(CharBuffer.wrap(buf, 0, len)).find())
+                    return true;
+                carry = Math.min(OVERLAP, len);
+                System.arraycopy(buf, len - carry, buf, 0, carry);
+            }
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+}
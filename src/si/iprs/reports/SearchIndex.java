@@ -0,0 +1,709 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+/**
+ * SearchIndex - full text index over the converted documents, so finding
+ * everything about a zavezanec (or everything citing a člen) doesn't mean
+ * grepping thousands of html files.
+ *
+ * Text is folded like the nadzorniki in {@link NadzornikResolver} (lower
+ * case, no diacritics, so "Čebulj" finds "cebulj" and vice versa), split on
+ * anything that isn't a letter or a digit, common Slovene words are dropped
+ * and the usual Slovene endings are cut off ("odločba", "odločbe" and
+ * "odločbo" are all "odlocb"). Hits are ranked with BM25.
+ *
+ * Each document also has its case number, nadzornik, type (the directory
+ * it's from) and modified date, which a query can filter on.
+ *
+ * The index is a single file (index.N in the index dir, the highest N wins)
+ * that's memory mapped for queries: the documents sorted by source, then
+ * the terms sorted, each with its postings (document, term frequency), then
+ * tables of offsets into both and a trailer. Documents added or removed
+ * since the last flush are kept in memory; {@link #flush()} merges them with
+ * the mapped index into the next index.N. Not for more than one writer at a
+ * time.
+ *
+ * Usage: java -cp .. SearchIndex <index dir> [-n <hits>] <query>, where the
+ * query is words plus optional filters: nadzornik:<name>, type:<type>,
+ * case:<case number>, from:<yyyy-MM-dd>, to:<yyyy-MM-dd>.
+ *
+ * @author ikolar
+ */
+public class SearchIndex implements Closeable {
+    public static final Log logger =
+        LogFactory.getLog(SearchIndex.class);
+
+    public static final String DIRNAME = "porocila.index";
+    private static final String ENCODING = "UTF-8";
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private static final int MAGIC = 0x504f5831; // POX1
+    private static final int TRAILER = 8 + 8 + 4 + 4 + 8 + 4; // doc table, term table, docs, terms, total length, magic
+
+    // BM25
+    private static final double K1 = 1.2, B = 0.75;
+
+    // flush on our own once this many documents are waiting, so a full run doesn't keep them all in memory
+    private static final int MAX_PENDING = 5000;
+
+    private static final Set<String> STOPWORDS = new HashSet<String>(Arrays.asList(
+        "in", "je", "na", "za", "da", "se", "ki", "pa", "po", "od", "do", "ali", "so", "tudi", "ter", "kot",
+        "iz", "pri", "ni", "bi", "bo", "ta", "to", "tega", "te", "ti", "tem", "tej", "kar", "ker", "ce",
+        "saj", "le", "vse", "vsi", "ne", "ga", "jih", "mu", "ji", "smo", "ste", "sem", "si", "sta", "bil",
+        "bila", "bilo", "bili", "biti", "pod", "nad", "med", "brez", "oz", "npr", "ob", "proti", "glede"));
+
+    // longest first
+    private static final String[] SUFFIXES = {
+        "ijah", "ijem", "ega", "emu", "ami", "ija", "ije", "iji", "ijo", "ih", "im", "om", "em", "ov", "ev",
+        "ah", "mi", "ja", "je", "ji", "jo", "a", "e", "i", "o", "u" };
+    private static final int MIN_STEM = 4;
+
+    private final File dir;
+    private Segment index;
+    private int generation = 0;
+    private final Map<String, Pending> changes = new HashMap<String, Pending>(); // source -> document, null = removed
+
+    /**
+     * A document's fields.
+     */
+    public static class Hit {
+        private final String source, html, caseNumber, nadzornik, type;
+        private final Date modified;
+        private final int length;
+        private double score;
+
+        Hit(String source, String html, String caseNumber, String nadzornik, String type, Date modified, int length) {
+            this.source = source;
+            this.html = html;
+            this.caseNumber = caseNumber;
+            this.nadzornik = nadzornik;
+            this.type = type;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getHtml() {
+            return html;
+        }
+
+        public String getCaseNumber() {
+            return caseNumber;
+        }
+
+        public String getNadzornik() {
+            return nadzornik;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Date getModified() {
+            return modified;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * A document added since the last flush.
+     */
+    private static class Pending {
+        final Hit fields;
+        final String[] terms; // sorted
+        final int[] freqs;
+
+        Pending(Hit fields, String[] terms, int[] freqs) {
+            this.fields = fields;
+            this.terms = terms;
+            this.freqs = freqs;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp .. SearchIndex <index dir> [-n <hits>] <words> [nadzornik:<name>] [type:<type>] [case:<case number>] [from:<yyyy-MM-dd>] [to:<yyyy-MM-dd>]");
+            System.exit(-1);
+        }
+
+        int n = 20;
+        StringBuilder query = new StringBuilder();
+        for (int i = 1; i < args.length; i++) {
+            if ("-n".equals(args[i]) && i + 1 < args.length)
+                n = Integer.parseInt(args[++i]);
+            else
+                query.append(args[i]).append(' ');
+        }
+
+        SearchIndex index = SearchIndex.open(new File(args[0]));
+        try {
+            long start = System.nanoTime();
+            List<Hit> hits = index.search(query.toString(), n);
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, ENCODING));
+            SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+            for (Hit hit : hits) {
+                out.print(String.format(Locale.ROOT, "%.3f\t%s\t%s\t%s\t%s\t%s\n", hit.score,
+                    nullToEmpty(hit.caseNumber), nullToEmpty(hit.nadzornik), nullToEmpty(hit.type),
+                    hit.modified == null ? "" : df.format(hit.modified), hit.html));
+            }
+            out.flush();
+            logger.info(String.format("%d hits in %d ms", hits.size(), millis));
+        } catch (ParseException e) {
+            System.err.println("o_O " + e.getMessage() + ", dates are yyyy-MM-dd");
+            System.exit(-1);
+        } finally {
+            index.close();
+        }
+    }
+
+    protected SearchIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Open the index in the directory (a new one if there isn't one yet).
+     */
+    public static SearchIndex open(File dir) throws IOException {
+        if (! dir.isDirectory() && ! dir.mkdirs())
+            throw new IOException("o_O could not create index directory " + dir);
+
+        SearchIndex index = new SearchIndex(dir);
+        File[] files = dir.listFiles();
+        File newest = null;
+        for (File f : files == null ? new File[0] : files) {
+            if (! f.getName().matches("index\\.\\d+"))
+                continue;
+            int generation = Integer.parseInt(f.getName().substring(6));
+            if (newest == null || generation > index.generation) {
+                newest = f;
+                index.generation = generation;
+            }
+        }
+        for (File f : files == null ? new File[0] : files) {
+            if (f.getName().matches("index\\.\\d+") && ! f.equals(newest) && ! f.delete())
+                logger.debug("Could not delete old index " + f + " yet");
+        }
+        index.index = newest == null ? Segment.EMPTY : new Segment(newest);
+
+        logger.info(String.format("Opened search index %s: %d documents, %d terms", dir, index.index.docs, index.index.terms));
+        return index;
+    }
+
+    /**
+     * The key of a source in the index (same as in the manifest).
+     */
+    public static String key(File source) throws IOException {
+        return source.getCanonicalPath();
+    }
+
+    /**
+     * Add the document (or replace it, if its source is already in), with
+     * the text of its html.
+     */
+    public void put(Document doc, String text) throws IOException {
+        Map<String, Integer> freqs = new TreeMap<String, Integer>();
+        int length = 0;
+        for (String term : terms(text)) {
+            Integer f = freqs.get(term);
+            freqs.put(term, f == null ? 1 : f + 1);
+            length++;
+        }
+        String[] terms = freqs.keySet().toArray(new String[freqs.size()]);
+        int[] fs = new int[terms.length];
+        for (int i = 0; i < terms.length; i++)
+            fs[i] = freqs.get(terms[i]);
+
+        String key = key(doc.getSrc());
+        Hit fields = new Hit(key, doc.getHtml() == null ? "" : doc.getHtml().getPath(),
+            doc.getCaseNumber(), doc.getNadzornik(), doc.getType(), doc.getDocumentDate(), length);
+        boolean full;
+        synchronized (this) {
+            changes.put(key, new Pending(fields, terms, fs));
+            full = changes.size() >= MAX_PENDING;
+        }
+        if (full)
+            flush();
+    }
+
+    /**
+     * Is the source in the index?
+     */
+    public synchronized boolean contains(File source) throws IOException {
+        String key = key(source);
+        if (changes.containsKey(key))
+            return changes.get(key) != null;
+        return index.findDoc(key) >= 0;
+    }
+
+    /**
+     * Forget the sources that aren't in the keys.
+     *
+     * @return number of documents removed
+     */
+    public synchronized int retainAll(Collection<String> keep) {
+        Set<String> kept = new HashSet<String>(keep);
+        int removed = 0;
+        for (int i = 0; i < index.docs; i++) {
+            String key = index.docKey(i);
+            if (! kept.contains(key) && ! changes.containsKey(key)) {
+                changes.put(key, null);
+                removed++;
+            }
+        }
+        for (Map.Entry<String, Pending> e : changes.entrySet()) {
+            if (e.getValue() != null && ! kept.contains(e.getKey())) {
+                e.setValue(null);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Documents matching the query, best first.
+     *
+     * Only what's been flushed is searched.
+     */
+    public synchronized List<Hit> search(String query, int n) throws ParseException {
+        String nadzornik = null, type = null, caseNumber = null;
+        Date from = null, to = null;
+        StringBuilder words = new StringBuilder();
+        SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+        for (String token : query.trim().split("\\s+")) {
+            if (token.startsWith("nadzornik:"))
+                nadzornik = NadzornikResolver.fold(token.substring(10));
+            else if (token.startsWith("type:"))
+                type = NadzornikResolver.fold(token.substring(5));
+            else if (token.startsWith("case:"))
+                caseNumber = token.substring(5).trim();
+            else if (token.startsWith("from:"))
+                from = df.parse(token.substring(5));
+            else if (token.startsWith("to:"))
+                to = nextDay(df.parse(token.substring(3))); // the whole day
+            else
+                words.append(token).append(' ');
+        }
+
+        Segment segment = index;
+        Map<Integer, Double> scores = new HashMap<Integer, Double>();
+        Set<String> terms = new LinkedHashSet<String>(terms(words.toString()));
+        if (words.length() == 0) {
+            // just the filters
+            for (int i = 0; i < segment.docs; i++)
+                scores.put(i, 0.0);
+        }
+        double avgLength = segment.docs == 0 ? 1 : Math.max(1.0, (double) segment.totalLength / segment.docs);
+        for (String term : terms) {
+            int t = segment.findTerm(term);
+            if (t < 0)
+                continue;
+            int at = segment.postings(t);
+            int docFreq = segment.map.getInt(at);
+            double idf = Math.log(1 + (segment.docs - docFreq + 0.5) / (docFreq + 0.5));
+            for (int i = 0; i < docFreq; i++) {
+                int doc = segment.map.getInt(at + 4 + 8 * i);
+                int tf = segment.map.getInt(at + 8 + 8 * i);
+                double norm = K1 * (1 - B + B * segment.docLength(doc) / avgLength);
+                Double score = scores.get(doc);
+                scores.put(doc, (score == null ? 0 : score) + idf * tf * (K1 + 1) / (tf + norm));
+            }
+        }
+
+        List<Hit> hits = new ArrayList<Hit>();
+        for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+            Hit hit = segment.doc(e.getKey());
+            if (nadzornik != null && (hit.nadzornik == null || ! NadzornikResolver.fold(hit.nadzornik).contains(nadzornik)))
+                continue;
+            if (type != null && (hit.type == null || ! NadzornikResolver.fold(hit.type).equals(type)))
+                continue;
+            if (caseNumber != null && ! caseNumber.equalsIgnoreCase(hit.caseNumber))
+                continue;
+            if (from != null && (hit.modified == null || hit.modified.before(from)))
+                continue;
+            if (to != null && (hit.modified == null || ! hit.modified.before(to)))
+                continue;
+            hit.score = e.getValue();
+            hits.add(hit);
+        }
+        Collections.sort(hits, new Comparator<Hit>() {
+            // best first, then newest first (undated last), then by source
+            public int compare(Hit a, Hit b) {
+                int c = Double.compare(b.score, a.score);
+                if (c != 0)
+                    return c;
+                if (a.modified == null || b.modified == null)
+                    c = a.modified == null ? (b.modified == null ? 0 : 1) : -1;
+                else
+                    c = b.modified.compareTo(a.modified);
+                if (c != 0)
+                    return c;
+                return a.source.compareTo(b.source);
+            }
+        });
+        return hits.size() > n ? new ArrayList<Hit>(hits.subList(0, n)) : hits;
+    }
+
+    /**
+     * Merge the documents added and removed since the last flush into a new
+     * index file.
+     */
+    public synchronized void flush() throws IOException {
+        if (changes.isEmpty())
+            return;
+
+        // the documents, old and new, sorted by source
+        Segment old = index;
+        SortedMap<String, Object> docs = new TreeMap<String, Object>(); // source -> old id or Pending
+        for (int i = 0; i < old.docs; i++) {
+            String key = old.docKey(i);
+            if (! changes.containsKey(key))
+                docs.put(key, i);
+        }
+        for (Map.Entry<String, Pending> e : changes.entrySet()) {
+            if (e.getValue() != null)
+                docs.put(e.getKey(), e.getValue());
+        }
+
+        int[] oldToNew = new int[old.docs];
+        Arrays.fill(oldToNew, -1);
+        List<Hit> fields = new ArrayList<Hit>(docs.size());
+        SortedMap<String, List<int[]>> added = new TreeMap<String, List<int[]>>(); // term -> new id, tf
+        long totalLength = 0;
+        for (Object doc : docs.values()) {
+            int id = fields.size();
+            Hit hit;
+            if (doc instanceof Integer) {
+                oldToNew[(Integer) doc] = id;
+                hit = old.doc((Integer) doc);
+            } else {
+                Pending p = (Pending) doc;
+                hit = p.fields;
+                for (int i = 0; i < p.terms.length; i++) {
+                    List<int[]> postings = added.get(p.terms[i]);
+                    if (postings == null)
+                        added.put(p.terms[i], postings = new ArrayList<int[]>());
+                    postings.add(new int[] { id, p.freqs[i] });
+                }
+            }
+            fields.add(hit);
+            totalLength += hit.length;
+        }
+
+        File target = new File(dir, "index." + (generation + 1));
+        File tmp = AtomicFiles.newTempFile(target);
+        try {
+            CountingOutputStream counter = new CountingOutputStream(AtomicFiles.newOutputStream(tmp));
+            DataOutputStream out = new DataOutputStream(counter);
+            try {
+                long[] docOffsets = new long[fields.size()];
+                for (int i = 0; i < docOffsets.length; i++) {
+                    docOffsets[i] = counter.count;
+                    Hit hit = fields.get(i);
+                    writeString(out, hit.source);
+                    writeString(out, hit.html);
+                    writeString(out, hit.caseNumber);
+                    writeString(out, hit.nadzornik);
+                    writeString(out, hit.type);
+                    out.writeLong(hit.modified == null ? Long.MIN_VALUE : hit.modified.getTime());
+                    out.writeInt(hit.length);
+                }
+
+                // both term lists are sorted, so merge them as they go
+                List<Long> termOffsets = new ArrayList<Long>();
+                Iterator<Map.Entry<String, List<int[]>>> news = added.entrySet().iterator();
+                Map.Entry<String, List<int[]>> next = news.hasNext() ? news.next() : null;
+                List<int[]> postings = new ArrayList<int[]>();
+                int t = 0;
+                while (t < old.terms || next != null) {
+                    String oldTerm = t < old.terms ? old.term(t) : null;
+                    int c = oldTerm == null ? 1 : next == null ? -1 : oldTerm.compareTo(next.getKey());
+                    String term = c <= 0 ? oldTerm : next.getKey();
+
+                    postings.clear();
+                    if (c <= 0) {
+                        int at = old.postings(t);
+                        int df = old.map.getInt(at);
+                        for (int i = 0; i < df; i++) {
+                            int id = oldToNew[old.map.getInt(at + 4 + 8 * i)];
+                            if (id >= 0)
+                                postings.add(new int[] { id, old.map.getInt(at + 8 + 8 * i) });
+                        }
+                        t++;
+                    }
+                    if (c >= 0) {
+                        postings.addAll(next.getValue());
+                        next = news.hasNext() ? news.next() : null;
+                    }
+                    if (postings.isEmpty())
+                        continue;
+
+                    Collections.sort(postings, new Comparator<int[]>() {
+                        public int compare(int[] a, int[] b) {
+                            return Integer.compare(a[0], b[0]);
+                        }
+                    });
+                    termOffsets.add(counter.count);
+                    writeString(out, term);
+                    out.writeInt(postings.size());
+                    for (int[] p : postings) {
+                        out.writeInt(p[0]);
+                        out.writeInt(p[1]);
+                    }
+                }
+
+                long docTable = counter.count;
+                for (long offset : docOffsets)
+                    out.writeLong(offset);
+                long termTable = counter.count;
+                for (long offset : termOffsets)
+                    out.writeLong(offset);
+                out.writeLong(docTable);
+                out.writeLong(termTable);
+                out.writeInt(docOffsets.length);
+                out.writeInt(termOffsets.size());
+                out.writeLong(totalLength);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+            if (counter.count > Integer.MAX_VALUE)
+                throw new IOException("o_O search index " + target + " would be over 2 GB, that's more than it can map");
+            AtomicFiles.commit(tmp, target);
+        } finally {
+            AtomicFiles.discard(tmp);
+        }
+
+        File previous = new File(dir, "index." + generation);
+        index = new Segment(target);
+        generation++;
+        changes.clear();
+        if (previous.exists() && ! previous.delete())
+            logger.debug("Could not delete old index " + previous + " yet, will do on the next open");
+        logger.info(String.format("Wrote search index %s: %d documents, %d terms", target, index.docs, index.terms));
+    }
+
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * The terms of the text, folded and stemmed, in order.
+     */
+    protected static List<String> terms(String text) {
+        List<String> terms = new ArrayList<String>();
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= decomposed.length(); i++) {
+            char c = i < decomposed.length() ? decomposed.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (c == '\u0111') // đ doesn't decompose
+                c = 'd';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+                continue;
+            }
+            if (token.length() > 0) {
+                String term = term(token.toString());
+                if (term != null)
+                    terms.add(term);
+                token.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * The token stemmed, or null if it's not worth indexing.
+     */
+    private static String term(String token) {
+        if (STOPWORDS.contains(token))
+            return null;
+        if (token.length() == 1 && ! Character.isDigit(token.charAt(0)))
+            return null;
+        if (! Character.isLetter(token.charAt(token.length() - 1)))
+            return token; // numbers, case numbers, člen 14 ..
+
+        for (String suffix : SUFFIXES) {
+            if (token.endsWith(suffix) && token.length() - suffix.length() >= MIN_STEM)
+                return token.substring(0, token.length() - suffix.length());
+        }
+        return token;
+    }
+
+    private static Date nextDay(Date day) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(day);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        return cal.getTime();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(ENCODING);
+        out.writeShort(Math.min(bytes.length, Short.MAX_VALUE));
+        out.write(bytes, 0, Math.min(bytes.length, Short.MAX_VALUE));
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * A memory mapped index file.
+     */
+    private static class Segment {
+        static final Segment EMPTY = new Segment();
+
+        private final MappedByteBuffer map;
+        private final int docTable, termTable;
+        final int docs, terms;
+        final long totalLength;
+
+        private Segment() {
+            this.map = null;
+            this.docTable = this.termTable = this.docs = this.terms = 0;
+            this.totalLength = 0;
+        }
+
+        Segment(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close(); // the mapping stays
+            }
+            int trailer = map.capacity() - TRAILER;
+            if (trailer < 0 || map.getInt(trailer + 32) != MAGIC)
+                throw new IOException("o_O " + file + " is not a search index");
+            this.docTable = (int) map.getLong(trailer);
+            this.termTable = (int) map.getLong(trailer + 8);
+            this.docs = map.getInt(trailer + 16);
+            this.terms = map.getInt(trailer + 20);
+            this.totalLength = map.getLong(trailer + 24);
+        }
+
+        private String string(int at) {
+            byte[] bytes = new byte[map.getShort(at)];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = map.get(at + 2 + i);
+            try {
+                return new String(bytes, ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int skip(int at) {
+            return at + 2 + map.getShort(at);
+        }
+
+        private int docAt(int i) {
+            return (int) map.getLong(docTable + 8 * i);
+        }
+
+        String docKey(int i) {
+            return string(docAt(i));
+        }
+
+        int docLength(int i) {
+            int at = docAt(i);
+            for (int s = 0; s < 5; s++)
+                at = skip(at);
+            return map.getInt(at + 8);
+        }
+
+        Hit doc(int i) {
+            int at = docAt(i);
+            String[] s = new String[5];
+            for (int j = 0; j < s.length; j++) {
+                s[j] = string(at);
+                at = skip(at);
+            }
+            long modified = map.getLong(at);
+            return new Hit(s[0], s[1], emptyToNull(s[2]), emptyToNull(s[3]), emptyToNull(s[4]),
+                modified == Long.MIN_VALUE ? null : new Date(modified), map.getInt(at + 8));
+        }
+
+        private int termAt(int i) {
+            return (int) map.getLong(termTable + 8 * i);
+        }
+
+        String term(int i) {
+            return string(termAt(i));
+        }
+
+        /**
+         * Where the term's postings start: df, then (doc, tf) pairs.
+         */
+        int postings(int i) {
+            return skip(termAt(i));
+        }
+
+        int findDoc(String key) {
+            int lo = 0, hi = docs - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = docKey(mid).compareTo(key);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        int findTerm(String term) {
+            int lo = 0, hi = terms - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = term(mid).compareTo(term);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private static String emptyToNull(String s) {
+            return s.isEmpty() ? null : s;
+        }
+    }
+}
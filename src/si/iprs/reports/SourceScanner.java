@@ -0,0 +1,220 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+import org.apache.commons.io.filefilter.*;
+import org.apache.commons.logging.*;
+
+/**
+ * Finds the source documents in the source directories.
+ *
+ * All the source directories are walked at the same time (one thread each),
+ * and each file is checked by name only, so there's no extra trip to the
+ * share per file. The size and mtime the walk reads anyway are kept in the
+ * returned files, so {@link File#length()} and {@link File#lastModified()}
+ * (the manifest checks them for every source) don't go to the share again.
+ *
+ * With a window start (scan_from), directories named after a year or a
+ * month before it ("2013", "2014-05 maj", or "05" in a "2014" directory)
+ * aren't walked at all. They're listed in the result, so the caller knows
+ * their documents weren't deleted, just not looked at.
+ *
+ * @author ikolar
+ */
+public class SourceScanner {
+    public static final Log logger =
+        LogFactory.getLog(SourceScanner.class);
+
+    // 2014, 2014-05, 2014_5 maj ...
+    private static final Pattern YEAR_DIR = Pattern.compile("((?:19|20)\\d\\d)(?:[-_. ]+(0?[1-9]|1[0-2]))?(?!\\d).*");
+    // 05, 5 maj ... (in a year directory)
+    private static final Pattern MONTH_DIR = Pattern.compile("(0?[1-9]|1[0-2])(?!\\d).*");
+
+    private final IOFileFilter filter;
+    private final YearMonth from;
+
+    /**
+     * What was found in a source directory.
+     */
+    public static class Result {
+        private final File sourceDir;
+        private final List<File> sources = new ArrayList<File>();
+        private final List<File> skipped = new ArrayList<File>();
+        private long nanos;
+
+        Result(File sourceDir) {
+            this.sourceDir = sourceDir;
+        }
+
+        public File getSourceDir() {
+            return sourceDir;
+        }
+
+        /**
+         * The source documents, with their size and mtime from the scan.
+         */
+        public List<File> getSources() {
+            return sources;
+        }
+
+        /**
+         * Directories left out because they're before the window.
+         */
+        public List<File> getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * How long the scan took.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * A file with the size and mtime it had when it was scanned.
+     */
+    private static class ScannedFile extends File {
+        private static final long serialVersionUID = 1L;
+
+        private final long length, lastModified;
+
+        ScannedFile(Path path, BasicFileAttributes attrs) {
+            super(path.toString());
+            this.length = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * @param filter which files are source documents (by name, the dir isn't used)
+     * @param from skip directories of years and months before this, or null to scan everything
+     */
+    public SourceScanner(IOFileFilter filter, YearMonth from) {
+        this.filter = filter;
+        this.from = from;
+    }
+
+    /**
+     * Scan the source directories at the same time.
+     *
+     * @return a result per source directory, in the same order
+     */
+    public List<Result> scan(Collection<File> sourceDirs) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, sourceDirs.size()), new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scan-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final File sourceDir : sourceDirs) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() throws IOException {
+                        return scan(sourceDir);
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures)
+                results.add(get(future));
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Result get(Future<Result> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("o_O interrupted while scanning the source directories");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Scan one source directory.
+     */
+    public Result scan(File sourceDir) throws IOException {
+        final Result result = new Result(sourceDir);
+        final Path root = sourceDir.toPath();
+        long start = System.nanoTime();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (! dir.equals(root) && isBeforeWindow(dir)) {
+                    result.skipped.add(dir.toFile());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && filter.accept(null, file.getFileName().toString()))
+                    result.sources.add(new ScannedFile(file, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warn("o_O could not scan " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        result.nanos = System.nanoTime() - start;
+
+        logger.info(String.format("Found %d sources in %s in %d ms%s", result.sources.size(), sourceDir, result.nanos / 1000000,
+            result.skipped.isEmpty() ? "" : String.format(", skipped %d directories before %s", result.skipped.size(), from)));
+        return result;
+    }
+
+    /**
+     * Is the directory named after a year or a month before the window?
+     */
+    protected boolean isBeforeWindow(Path dir) {
+        if (from == null || dir.getFileName() == null)
+            return false;
+
+        String name = dir.getFileName().toString();
+        Matcher year = YEAR_DIR.matcher(name);
+        if (year.matches()) {
+            int y = Integer.parseInt(year.group(1));
+            if (year.group(2) == null)
+                return y < from.getYear();
+            return YearMonth.of(y, Integer.parseInt(year.group(2))).isBefore(from);
+        }
+
+        // a month in a year directory
+        Path parent = dir.getParent();
+        Matcher month = MONTH_DIR.matcher(name);
+        if (parent == null || parent.getFileName() == null || ! month.matches())
+            return false;
+        Matcher parentYear = YEAR_DIR.matcher(parent.getFileName().toString());
+        if (! parentYear.matches() || parentYear.group(2) != null)
+            return false;
+        return YearMonth.of(Integer.parseInt(parentYear.group(1)), Integer.parseInt(month.group(1))).isBefore(from);
+    }
+}
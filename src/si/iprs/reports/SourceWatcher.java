@@ -0,0 +1,245 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.io.filefilter.*;
+import org.apache.commons.logging.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the source directories (and all their subdirectories) for source
+ * documents that are created, changed or deleted.
+ *
+ * Word saves a document in several writes (and sometimes through a temp file
+ * and a rename), so a document is only handed out once it's been quiet for
+ * the debounce time and its size and mtime didn't change in the meantime.
+ *
+ * Deletes are debounced too: Word's safe save deletes (or renames away) the
+ * document and puts the new one in its place a moment later, and that's not
+ * a delete we want to remove the outputs for. A deleted path is only handed
+ * out if it's still not there when the debounce time is up.
+ *
+ * @author ikolar
+ */
+public class SourceWatcher implements Closeable {
+    public static final Log logger =
+        LogFactory.getLog(SourceWatcher.class);
+
+    private final WatchService watcher;
+    private final IOFileFilter filter;
+    private final long debounceMillis;
+
+    // watched directory -> the source dir it's in
+    private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+    private final Map<Path, File> sourceDirs = new HashMap<Path, File>();
+    // every directory we've seen, so we know what a deleted path was
+    private final Set<Path> watched = new HashSet<Path>();
+
+    // documents waiting to settle down: when they're due, and their size and mtime when last seen
+    private final Map<Path, Long> due = new HashMap<Path, Long>();
+    private final Map<Path, long[]> seen = new HashMap<Path, long[]>();
+    // deleted documents and directories, and when they're due (if they don't come back)
+    private final Map<Path, Long> deleting = new HashMap<Path, Long>();
+
+    /**
+     * What happened since the last batch.
+     */
+    public static class Batch {
+        private final Map<File, File> changed = new LinkedHashMap<File, File>();
+        private final List<File> deleted = new ArrayList<File>();
+        private boolean overflow;
+
+        /**
+         * Created or changed documents that settled down, and the source dir each is in.
+         */
+        public Map<File, File> getChanged() {
+            return changed;
+        }
+
+        /**
+         * Deleted documents or directories.
+         */
+        public List<File> getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Were events lost? Then the source dirs should be scanned again.
+         */
+        public boolean isOverflow() {
+            return overflow;
+        }
+
+        boolean isEmpty() {
+            return changed.isEmpty() && deleted.isEmpty() && ! overflow;
+        }
+    }
+
+    /**
+     * @param filter which files are source documents
+     */
+    public SourceWatcher(Collection<File> sourceDirs, IOFileFilter filter, long debounceMillis) throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.filter = filter;
+        this.debounceMillis = debounceMillis;
+        for (File sourceDir : sourceDirs) {
+            Path root = sourceDir.toPath();
+            this.sourceDirs.put(root, sourceDir);
+            registerAll(root, root, false);
+        }
+    }
+
+    /**
+     * Watch the directory and everything under it.
+     *
+     * @param scan queue the documents already in there (for directories
+     *             that were created or moved in while we're watching)
+     */
+    private void registerAll(final Path dir, final Path root, final boolean scan) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                dirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), root);
+                watched.add(d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (scan && filter.accept(f.toFile()))
+                    touched(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                logger.warn("o_O could not watch " + f + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Wait until there's something to do.
+     */
+    public Batch take() throws IOException, InterruptedException {
+        Batch batch = new Batch();
+        while (true) {
+            WatchKey key;
+            if (due.isEmpty() && deleting.isEmpty()) {
+                key = watcher.take();
+            } else {
+                long wait = Math.min(due.isEmpty() ? Long.MAX_VALUE : Collections.min(due.values()),
+                    deleting.isEmpty() ? Long.MAX_VALUE : Collections.min(deleting.values())) - System.currentTimeMillis();
+                key = watcher.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+            }
+
+            // drain everything that's there already
+            while (key != null) {
+                handle(key, batch);
+                key = watcher.poll();
+            }
+
+            settled(batch);
+            if (! batch.isEmpty())
+                return batch;
+        }
+    }
+
+    private void handle(WatchKey key, Batch batch) throws IOException {
+        Path dir = (Path) key.watchable();
+        Path root = dirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                logger.warn("o_O lost file system events in " + dir + ", everything will be rescanned");
+                batch.overflow = true;
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                due.remove(path);
+                seen.remove(path);
+                if (watched.remove(path) || filter.accept(path.toFile()))
+                    deleting.put(path, System.currentTimeMillis() + debounceMillis);
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE && root != null)
+                    registerAll(path, root, true);
+            } else if (filter.accept(path.toFile())) {
+                touched(path);
+            }
+        }
+
+        if (! key.reset()) {
+            dirs.remove(key); // the directory is gone
+        }
+    }
+
+    private void touched(Path path) {
+        due.put(path, System.currentTimeMillis() + debounceMillis);
+        seen.put(path, stat(path));
+    }
+
+    /**
+     * Move the documents that were quiet long enough into the batch, and the
+     * deleted ones that didn't come back.
+     */
+    private void settled(Batch batch) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> deletes = deleting.entrySet().iterator();
+        while (deletes.hasNext()) {
+            Map.Entry<Path, Long> e = deletes.next();
+            if (e.getValue() > now)
+                continue;
+
+            deletes.remove();
+            if (Files.exists(e.getKey(), LinkOption.NOFOLLOW_LINKS))
+                continue; // saved over, it's changed (if at all), not deleted
+            batch.deleted.add(e.getKey().toFile());
+        }
+
+        Iterator<Map.Entry<Path, Long>> it = due.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> e = it.next();
+            if (e.getValue() > now)
+                continue;
+
+            Path path = e.getKey();
+            long[] stat = stat(path);
+            if (stat == null) {
+                // gone before it settled (a temp file, most likely)
+                it.remove();
+                seen.remove(path);
+            } else if (! Arrays.equals(stat, seen.get(path))) {
+                // still being written, without telling us
+                e.setValue(now + debounceMillis);
+                seen.put(path, stat);
+            } else {
+                it.remove();
+                seen.remove(path);
+                batch.changed.put(path.toFile(), sourceDirOf(path));
+            }
+        }
+    }
+
+    private File sourceDirOf(Path path) {
+        for (Map.Entry<Path, File> e : sourceDirs.entrySet()) {
+            if (path.startsWith(e.getKey()))
+                return e.getValue();
+        }
+        return null;
+    }
+
+    private static long[] stat(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() };
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
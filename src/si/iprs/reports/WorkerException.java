@@ -0,0 +1,25 @@
+package si.iprs.reports;
+
+import java.io.*;
+
+/**
+ * The document hung or crashed the worker process converting it (it took
+ * too long, ran out of memory or worse). The worker is killed and
+ * restarted, and the document is quarantined.
+ *
+ * @author ikolar
+ */
+public class WorkerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final File doc;
+
+    public WorkerException(File doc, String message) {
+        super(message);
+        this.doc = doc;
+    }
+
+    public File getDocument() {
+        return doc;
+    }
+}
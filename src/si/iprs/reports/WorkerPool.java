@@ -0,0 +1,311 @@
+package si.iprs.reports;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+
+/**
+ * A pool of {@link ConversionWorker} child JVMs, so a document that hangs
+ * Tika or eats all the memory takes down a worker and not the whole run.
+ *
+ * Each worker runs with its own heap limit (-Xmx) and exits when it runs
+ * out of it. Each request has a wall clock limit; a worker that doesn't
+ * answer in time is killed. Either way the request fails with a
+ * {@link WorkerException}, and the worker is started again for the next
+ * request. Workers are also restarted after a number of requests, in case
+ * the libraries leak.
+ *
+ * The workers are started when they're first needed, and talk to us over
+ * their stdin and stdout (see {@link ConversionWorker} for the protocol).
+ * Each request takes a worker out of the pool for its duration, so the
+ * pool can be shared by any number of threads.
+ *
+ * @author ikolar
+ */
+public class WorkerPool implements Closeable {
+    public static final Log logger =
+        LogFactory.getLog(WorkerPool.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    // what the reader thread says when the worker's stdout is closed (can't be a reply line)
+    private static final String DIED = "\0";
+
+    // a worker has this long to get its engines up
+    private static final long START_TIMEOUT_MILLIS = 120 * 1000;
+
+    private final int memoryMb;
+    private final long timeoutMillis;
+    private final int maxRequests;
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+
+    /**
+     * What the html conversion picked up on the way.
+     */
+    public static class Html {
+        private final String caseNumber;
+        private final Date modified;
+
+        Html(String caseNumber, Date modified) {
+            this.caseNumber = caseNumber;
+            this.modified = modified;
+        }
+
+        public String getCaseNumber() {
+            return caseNumber;
+        }
+
+        public Date getModified() {
+            return modified;
+        }
+    }
+
+    /**
+     * @param size number of workers
+     * @param memoryMb heap of each worker
+     * @param timeoutMillis wall clock limit of a request
+     * @param maxRequests restart a worker after this many requests (0 for never)
+     */
+    public WorkerPool(int size, int memoryMb, long timeoutMillis, int maxRequests) {
+        this.memoryMb = memoryMb;
+        this.timeoutMillis = timeoutMillis;
+        this.maxRequests = maxRequests;
+        for (int i = 1; i <= Math.max(1, size); i++) {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            idle.add(worker);
+        }
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    /**
+     * Accept all changes in the document into the merged file.
+     *
+     * @return false if the document has no changes (and no merged file was written)
+     */
+    public boolean merge(File doc, File merged) throws IOException {
+        return "1".equals(call(doc, "merge", doc, merged)[1]);
+    }
+
+    /**
+     * Convert the document into an UTF-8 html file.
+     */
+    public Html toHtml(File doc, File html) throws IOException {
+        String[] reply = call(doc, "html", doc, html);
+        String caseNumber = reply[1].isEmpty() ? null : reply[1];
+        Date modified = reply[2].isEmpty() ? null : new Date(Long.parseLong(reply[2]));
+        return new Html(caseNumber, modified);
+    }
+
+    /**
+     * Send the request to an idle worker and wait for the reply.
+     *
+     * @return the fields of an "ok" reply
+     */
+    private String[] call(File doc, String command, File... args) throws IOException {
+        StringBuilder request = new StringBuilder(command);
+        for (File arg : args) {
+            String path = arg.getAbsolutePath();
+            if (path.contains("\t") || path.contains("\n"))
+                throw new IOException("o_O can't send a path with a tab or a newline to a worker: " + path);
+            request.append('\t').append(path);
+        }
+
+        Worker worker;
+        try {
+            worker = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("o_O interrupted while waiting for a worker for " + doc);
+        }
+        String[] reply;
+        try {
+            reply = worker.call(doc, request.toString());
+        } finally {
+            idle.add(worker);
+        }
+
+        if ("ok".equals(reply[0]))
+            return reply;
+        if ("too-large".equals(reply[0]) && reply.length == 3)
+            throw new DocumentTooLargeException(doc, Long.parseLong(reply[1]), Long.parseLong(reply[2]));
+        if ("error".equals(reply[0]) && reply.length == 3)
+            throw new IOException(reply[2] + " (" + reply[1] + " in worker)");
+        throw new IOException("o_O worker sent a reply we don't understand for " + doc + ": " + Arrays.toString(reply));
+    }
+
+    private static boolean isReply(String line) {
+        return line.equals("ready") || line.startsWith("ok\t") || line.startsWith("error\t") || line.startsWith("too-large\t");
+    }
+
+    /**
+     * Stop the workers. Waits for the requests in progress.
+     */
+    public void close() {
+        for (int i = 0; i < workers.size(); i++) {
+            try {
+                idle.take().stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Worker worker : workers)
+                    worker.kill();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A worker process, started on demand. Only used by one thread at a time.
+     */
+    private class Worker {
+        private final int id;
+        private Process process;
+        private Writer requests;
+        private BlockingQueue<String> replies;
+        private int served;
+
+        Worker(int id) {
+            this.id = id;
+        }
+
+        String[] call(File doc, String request) throws IOException {
+            if (process == null)
+                start();
+
+            try {
+                requests.write(request + "\n");
+                requests.flush();
+            } catch (IOException e) {
+                kill();
+                throw new WorkerException(doc, "o_O worker " + id + " went away before it got " + doc + ": " + e.getMessage());
+            }
+
+            String reply;
+            try {
+                reply = replies.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                kill();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("o_O interrupted while converting " + doc);
+            }
+
+            if (reply == null) {
+                kill();
+                throw new WorkerException(doc, String.format("o_O %s took longer than %d s, killed worker %d",
+                    doc, timeoutMillis / 1000, id));
+            }
+            if (DIED.equals(reply)) {
+                int exit = kill();
+                throw new WorkerException(doc, String.format("o_O worker %d died (exit code %d) while converting %s, out of memory?",
+                    id, exit, doc));
+            }
+
+            if (maxRequests > 0 && ++served >= maxRequests)
+                stop();
+            return reply.split("\t", -1);
+        }
+
+        private void start() throws IOException {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+            command.add("-Xmx" + memoryMb + "m");
+            command.add("-XX:+ExitOnOutOfMemoryError");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ConversionWorker.class.getName());
+            command.add(Long.toString(DocToHtml.getInstance().getMaxDocumentBytes()));
+            command.add(Long.toString(DocToHtml.getInstance().getMaxChars()));
+
+            logger.info(String.format("Starting worker %d with %d MB of memory ..", id, memoryMb));
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = builder.start();
+            requests = new OutputStreamWriter(process.getOutputStream(), ENCODING);
+            served = 0;
+
+            // a fresh queue per process, so a dead worker's reader can't answer for the next one
+            final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+            final BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), ENCODING));
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while ((line = out.readLine()) != null) {
+                            if (isReply(line))
+                                queue.add(line);
+                            else // the JVM itself prints a few things to stdout, like when it runs out of memory
+                                logger.info("Worker " + id + ": " + line);
+                        }
+                    } catch (IOException e) {
+                        // same as the end of the stream
+                    } finally {
+                        queue.add(DIED);
+                    }
+                }
+            }, "worker-" + id + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+            replies = queue;
+
+            // not the document's fault if the worker doesn't start, so no WorkerException
+            String ready;
+            try {
+                ready = replies.poll(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                kill();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("o_O interrupted while starting worker " + id);
+            }
+            if (! "ready".equals(ready)) {
+                int exit = kill();
+                throw new IOException(String.format("o_O worker %d didn't start (exit code %d), check its output above", id, exit));
+            }
+        }
+
+        /**
+         * Ask the worker to quit, and kill it if it doesn't.
+         */
+        void stop() {
+            if (process == null)
+                return;
+            try {
+                requests.write("quit\n");
+                requests.close();
+                if (process.waitFor(10, TimeUnit.SECONDS)) {
+                    process = null;
+                    return;
+                }
+            } catch (IOException e) {
+                // kill it then
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            kill();
+        }
+
+        /**
+         * @return the exit code, or -1 if it wouldn't die
+         */
+        int kill() {
+            if (process == null)
+                return -1;
+            Process p = process;
+            process = null;
+            p.destroyForcibly();
+            try {
+                if (p.waitFor(10, TimeUnit.SECONDS))
+                    return p.exitValue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            logger.warn("o_O worker " + id + " won't die");
+            return -1;
+        }
+    }
+}